@@ -0,0 +1,88 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Physical memory kept in a Java byte array. Words and halfwords are read and
+ * written in one operation through little-endian views of the array, instead
+ * of a byte at a time.
+ */
+public final class ArrayMemory implements PhysicalMemory {
+    private static final VarHandle words =
+            MethodHandles.byteArrayViewVarHandle(int[].class,
+                    ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle halfwords =
+            MethodHandles.byteArrayViewVarHandle(short[].class,
+                    ByteOrder.LITTLE_ENDIAN);
+
+    private byte[] bytes;
+
+    /**
+     * Allocate a new memory of the specified size.
+     *
+     * @param    size    the size of the memory, in bytes.
+     */
+    public ArrayMemory(int size) {
+        bytes = new byte[size];
+    }
+
+    /**
+     * Return the array holding this memory.
+     *
+     * @return the array.
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int read(int paddr, int size) {
+        switch (size) {
+            case 1:
+                return bytes[paddr];
+            case 2:
+                return (short) halfwords.get(bytes, paddr);
+            case 4:
+                return (int) words.get(bytes, paddr);
+            default:
+                Lib.assertNotReached();
+                return -1;
+        }
+    }
+
+    public int readWord(int paddr) {
+        return (int) words.get(bytes, paddr);
+    }
+
+    public void write(int paddr, int size, int value) {
+        switch (size) {
+            case 1:
+                bytes[paddr] = (byte) value;
+                break;
+            case 2:
+                halfwords.set(bytes, paddr, (short) value);
+                break;
+            case 4:
+                words.set(bytes, paddr, value);
+                break;
+            default:
+                Lib.assertNotReached();
+        }
+    }
+
+    public void read(int paddr, byte[] data, int offset, int length) {
+        System.arraycopy(bytes, paddr, data, offset, length);
+    }
+
+    public void write(int paddr, byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, bytes, paddr, length);
+    }
+
+    public void zero(int paddr, int length) {
+        Arrays.fill(bytes, paddr, paddr + length, (byte) 0);
+    }
+}
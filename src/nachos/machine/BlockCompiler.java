@@ -0,0 +1,794 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.HashMap;
+
+/**
+ * Translates a basic block of MIPS instructions into the class file of a
+ * <tt>Processor.CompiledBlock</tt>, so that hot user code runs as JVM bytecode
+ * instead of as a chain of handlers.
+ *
+ * <p>
+ * The generated <tt>run()</tt> method has exactly the effect of running the
+ * block's handlers one after another, with two differences the processor
+ * accounts for: it does not tick, and it does not translate the PC of each
+ * instruction. Everything known when the block is compiled is folded into the
+ * code: register numbers, immediates, shift amounts, the PC of every
+ * instruction and the target of every branch. The PC and nextPC registers are
+ * only written before an instruction that can raise an exception and at the
+ * end of the block.
+ *
+ * <p>
+ * The compiled code assumes it is entered at the virtual address it was
+ * compiled for, with nextPC equal to PC + 4. It returns the number of
+ * instructions it completed, which is the length of the block unless a store
+ * hit a page holding code, in which case it returns right after that store.
+ *
+ * <p>
+ * Class files are written at version 49, which the JVM verifies without
+ * stack map frames.
+ */
+final class BlockCompiler {
+    /**
+     * Return <tt>true</tt> if every instruction in <i>block</i> can be
+     * compiled. Syscalls, illegal instructions and the unaligned loads and
+     * stores are left to the handlers, as are branches in a delay slot.
+     *
+     * @param    block    the decoded instructions of the block.
+     * @return <tt>true</tt> if the block can be compiled.
+     */
+    static boolean canCompile(Processor.Decoded[] block) {
+        for (int i = 0; i < block.length; i++) {
+            switch (block[i].operation) {
+                case Processor.Mips.SYSCALL:
+                case Processor.Mips.UNIMPL:
+                case Processor.Mips.INVALID:
+                case Processor.Mips.LWL:
+                case Processor.Mips.LWR:
+                case Processor.Mips.SWL:
+                case Processor.Mips.SWR:
+                    return false;
+            }
+
+            if (i > 0 && isBranch(block[i - 1]) && isBranch(block[i]))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Compile a block.
+     *
+     * @param    className    the binary name of the class to generate, which
+     * must be in package <tt>nachos.machine</tt>.
+     * @param    vaddr        the virtual address of the first instruction.
+     * @param    block        the decoded instructions of the block, which
+     * must pass <tt>canCompile()</tt>.
+     * @return the class file.
+     */
+    static byte[] compile(String className, int vaddr,
+                          Processor.Decoded[] block) {
+        Lib.assertTrue(canCompile(block));
+
+        return new BlockCompiler(vaddr, block).assemble(className);
+    }
+
+    private BlockCompiler(int vaddr, Processor.Decoded[] block) {
+        this.vaddr = vaddr;
+        this.block = block;
+    }
+
+    private byte[] assemble(String className) {
+        int thisClass = classRef(className.replace('.', '/'));
+        int superClass = classRef(compiledBlock);
+
+        // public <init>() { super(); }
+        ByteBuffer init = new ByteBuffer();
+        init.u1(ALOAD_0);
+        init.u1(INVOKESPECIAL);
+        init.u2(methodRef(compiledBlock, "<init>", "()V"));
+        init.u1(RETURN);
+
+        // public int run(Processor processor, int[] registers)
+        for (int i = 0; i < block.length; i++)
+            instruction(i);
+
+        ByteBuffer classFile = new ByteBuffer();
+        classFile.u4(0xCAFEBABE);
+        classFile.u2(0);
+        classFile.u2(49);
+
+        int codeName = utf8("Code");
+        int initName = utf8("<init>");
+        int initType = utf8("()V");
+        int runName = utf8("run");
+        int runType = utf8("(L" + processor + ";[I)I");
+
+        classFile.u2(poolCount);
+        classFile.append(pool);
+
+        classFile.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        classFile.u2(thisClass);
+        classFile.u2(superClass);
+        classFile.u2(0);    // interfaces
+        classFile.u2(0);    // fields
+        classFile.u2(2);    // methods
+        method(classFile, initName, initType, codeName, 1, 1, init);
+        method(classFile, runName, runType, codeName, maxStack, numLocals,
+                code);
+        classFile.u2(0);    // attributes
+
+        return classFile.toByteArray();
+    }
+
+    private void method(ByteBuffer classFile, int name, int type, int codeName,
+                        int stack, int locals, ByteBuffer body) {
+        classFile.u2(ACC_PUBLIC);
+        classFile.u2(name);
+        classFile.u2(type);
+        classFile.u2(1);
+        classFile.u2(codeName);
+        classFile.u4(12 + body.size());
+        classFile.u2(stack);
+        classFile.u2(locals);
+        classFile.u4(body.size());
+        classFile.append(body);
+        classFile.u2(0);    // exception table
+        classFile.u2(0);    // attributes
+    }
+
+    /**
+     * Emit the code for instruction <i>i</i> of the block, and for the end
+     * of the block after the last one.
+     */
+    private void instruction(int i) {
+        Processor.Decoded decoded = block[i];
+        int pc = vaddr + i * 4;
+        boolean inDelaySlot = (i > 0 && isBranch(block[i - 1]));
+        // after anything but a load, the delayed load is known to be done
+        boolean loadPending =
+                (i == 0 || block[i - 1].operation == Processor.Mips.LOAD);
+        boolean unsigned = Lib.test(Processor.Mips.UNSIGNED, decoded.flags);
+
+        switch (decoded.operation) {
+            case Processor.Mips.ADD:
+            case Processor.Mips.SUB:
+            case Processor.Mips.SLL:
+            case Processor.Mips.SRA:
+            case Processor.Mips.SRL:
+            case Processor.Mips.SLT:
+            case Processor.Mips.AND:
+            case Processor.Mips.OR:
+            case Processor.Mips.NOR:
+            case Processor.Mips.XOR:
+            case Processor.Mips.LUI:
+                alu(decoded, pc, inDelaySlot, loadPending, unsigned);
+                break;
+
+            case Processor.Mips.BEQ:
+            case Processor.Mips.BNE:
+            case Processor.Mips.BGEZ:
+            case Processor.Mips.BGTZ:
+            case Processor.Mips.BLEZ:
+            case Processor.Mips.BLTZ:
+            case Processor.Mips.JUMP:
+                branch(decoded, pc, loadPending);
+                break;
+
+            case Processor.Mips.MULT:
+                loadSource(decoded.rs, unsigned);
+                loadSource(decoded.rt, unsigned);
+                code.u1(LMUL);
+                code.u1(LSTORE);
+                code.u1(DST);
+                storeRegister(Processor.regLo, false);
+                storeRegister(Processor.regHi, true);
+                finishLoad(loadPending);
+                break;
+
+            case Processor.Mips.DIV:
+                savePC(pc, inDelaySlot);
+                code.u1(ALOAD_1);
+                pushInt(decoded.rs);
+                pushInt(decoded.rt);
+                pushInt(unsigned ? 1 : 0);
+                invokeProcessor("jitDivide", "(IIZ)V");
+                finishLoad(loadPending);
+                break;
+
+            case Processor.Mips.MFLO:
+            case Processor.Mips.MFHI:
+                loadRegister(decoded.operation == Processor.Mips.MFLO ?
+                        Processor.regLo : Processor.regHi);
+                code.u1(ISTORE);
+                code.u1(TEMP);
+                finishLoad(loadPending);
+                if (decoded.dstReg != 0) {
+                    code.u1(ALOAD_2);
+                    pushInt(decoded.dstReg);
+                    code.u1(ILOAD);
+                    code.u1(TEMP);
+                    code.u1(IASTORE);
+                }
+                break;
+
+            case Processor.Mips.MTLO:
+            case Processor.Mips.MTHI:
+                code.u1(ALOAD_2);
+                pushInt(decoded.operation == Processor.Mips.MTLO ?
+                        Processor.regLo : Processor.regHi);
+                loadRegister(decoded.rs);
+                code.u1(IASTORE);
+                finishLoad(loadPending);
+                break;
+
+            case Processor.Mips.LOAD:
+                savePC(pc, inDelaySlot);
+                code.u1(ALOAD_1);
+                pushInt(decoded.dstReg);
+                code.u1(ALOAD_1);
+                address(decoded);
+                pushInt(decoded.size);
+                invokeProcessor("jitRead", "(II)I");
+                if (!unsigned) {
+                    pushInt(0);
+                    pushInt(decoded.size * 8);
+                    code.u1(INVOKESTATIC);
+                    code.u2(methodRef(lib, "extend", "(III)I"));
+                }
+                pushInt(0xFFFFFFFF);
+                invokeProcessor("jitDelayedLoad", "(III)V");
+                break;
+
+            case Processor.Mips.STORE:
+                savePC(pc, inDelaySlot);
+                code.u1(ALOAD_1);
+                address(decoded);
+                pushInt(decoded.size);
+                loadRegister(decoded.rt);
+                invokeProcessor("jitWrite", "(III)Z");
+                code.u1(ISTORE);
+                code.u1(TEMP);
+                finishLoad(loadPending);
+
+                // the store may have changed the code we are running, so
+                // leave before the next instruction
+                if (i < block.length - 1) {
+                    code.u1(ILOAD);
+                    code.u1(TEMP);
+                    int unchanged = branch(IFEQ);
+                    storeConstant(Processor.regPC, pc + 4);
+                    storeConstant(Processor.regNextPC, pc + 8);
+                    pushInt(i + 1);
+                    code.u1(IRETURN);
+                    bind(unchanged);
+                }
+                break;
+
+            default:
+                Lib.assertNotReached();
+        }
+
+        if (i == block.length - 1) {
+            if (inDelaySlot) {
+                code.u1(ALOAD_2);
+                pushInt(Processor.regPC);
+                code.u1(ILOAD);
+                code.u1(TARGET);
+                code.u1(IASTORE);
+                code.u1(ALOAD_2);
+                pushInt(Processor.regNextPC);
+                code.u1(ILOAD);
+                code.u1(TARGET);
+                pushInt(4);
+                code.u1(IADD);
+                code.u1(IASTORE);
+            } else if (!isBranch(decoded)) {
+                storeConstant(Processor.regPC, pc + 4);
+                storeConstant(Processor.regNextPC, pc + 8);
+            }
+
+            pushInt(block.length);
+            code.u1(IRETURN);
+        }
+    }
+
+    private void alu(Processor.Decoded decoded, int pc, boolean inDelaySlot,
+                     boolean loadPending, boolean unsigned) {
+        boolean overflow = Lib.test(Processor.Mips.OVERFLOW, decoded.flags);
+
+        if (decoded.dstReg == 0 && !overflow) {
+            finishLoad(loadPending);
+            return;
+        }
+
+        if (overflow)
+            savePC(pc, inDelaySlot);
+
+        if (Lib.test(Processor.Mips.SRC1SH, decoded.flags))
+            pushLong(decoded.sh);
+        else
+            loadSource(decoded.rs, unsigned);
+        code.u1(LSTORE);
+        code.u1(SRC1);
+
+        if (Lib.test(Processor.Mips.SRC2IMM, decoded.flags))
+            pushLong(unsigned ? decoded.imm & 0xFFFFFFFFL : decoded.imm);
+        else
+            loadSource(decoded.rt, unsigned);
+        code.u1(LSTORE);
+        code.u1(SRC2);
+
+        switch (decoded.operation) {
+            case Processor.Mips.ADD:
+                binary(SRC1, SRC2, LADD);
+                break;
+            case Processor.Mips.SUB:
+                binary(SRC1, SRC2, LSUB);
+                break;
+            case Processor.Mips.SLL:
+                shift(LSHL);
+                break;
+            case Processor.Mips.SRA:
+                shift(LSHR);
+                break;
+            case Processor.Mips.SRL:
+                shift(LUSHR);
+                break;
+            case Processor.Mips.SLT:
+                binary(SRC1, SRC2, LCMP);
+                int less = branch(IFLT);
+                code.u1(LCONST_0);
+                int done = branch(GOTO);
+                bind(less);
+                code.u1(LCONST_1);
+                bind(done);
+                break;
+            case Processor.Mips.AND:
+                binary(SRC1, SRC2, LAND);
+                break;
+            case Processor.Mips.OR:
+                binary(SRC1, SRC2, LOR);
+                break;
+            case Processor.Mips.NOR:
+                binary(SRC1, SRC2, LOR);
+                pushLong(-1);
+                code.u1(LXOR);
+                break;
+            case Processor.Mips.XOR:
+                binary(SRC1, SRC2, LXOR);
+                break;
+            case Processor.Mips.LUI:
+                pushLong(decoded.imm << 16);
+                break;
+            default:
+                Lib.assertNotReached();
+        }
+        code.u1(LSTORE);
+        code.u1(DST);
+
+        // same test as Instruction.writeBack()
+        if (overflow) {
+            code.u1(LLOAD);
+            code.u1(DST);
+            pushLong(31);
+            code.u1(INVOKESTATIC);
+            code.u2(methodRef(lib, "test", "(JJ)Z"));
+            code.u1(LLOAD);
+            code.u1(DST);
+            pushLong(32);
+            code.u1(INVOKESTATIC);
+            code.u2(methodRef(lib, "test", "(JJ)Z"));
+            int ok = branch(IF_ICMPEQ);
+            code.u1(ALOAD_1);
+            invokeProcessor("jitOverflow", "()V");
+            // not reached, jitOverflow() always throws
+            pushInt(0);
+            code.u1(IRETURN);
+            bind(ok);
+        }
+
+        finishLoad(loadPending);
+
+        if (decoded.dstReg != 0)
+            storeRegister(decoded.dstReg, false);
+    }
+
+    /**
+     * Emit a branch or jump. The taken or fall-through target goes in the
+     * <tt>TARGET</tt> local, and the PC moves to the delay slot.
+     */
+    private void branch(Processor.Decoded decoded, int pc,
+                        boolean loadPending) {
+        int nextPC = pc + 8;
+
+        if (decoded.operation == Processor.Mips.JUMP) {
+            if (decoded.format == Processor.Mips.RFMT)
+                loadRegister(decoded.rs);
+            else
+                pushInt(((pc + 4) & 0xF0000000) | (decoded.target << 2));
+        } else {
+            int condition;
+            switch (decoded.operation) {
+                case Processor.Mips.BEQ:
+                    condition = IF_ICMPEQ;
+                    break;
+                case Processor.Mips.BNE:
+                    condition = IF_ICMPNE;
+                    break;
+                case Processor.Mips.BGEZ:
+                    condition = IFGE;
+                    break;
+                case Processor.Mips.BGTZ:
+                    condition = IFGT;
+                    break;
+                case Processor.Mips.BLEZ:
+                    condition = IFLE;
+                    break;
+                default:
+                    condition = IFLT;
+                    break;
+            }
+
+            loadRegister(decoded.rs);
+            if (condition == IF_ICMPEQ || condition == IF_ICMPNE)
+                loadRegister(decoded.rt);
+
+            int taken = branch(condition);
+            pushInt(nextPC);
+            int done = branch(GOTO);
+            bind(taken);
+            pushInt(pc + 4 + decoded.branchOffset);
+            bind(done);
+        }
+        code.u1(ISTORE);
+        code.u1(TARGET);
+
+        finishLoad(loadPending);
+
+        if (Lib.test(Processor.Mips.LINK, decoded.flags) &&
+                decoded.dstReg != 0)
+            storeConstant(decoded.dstReg, nextPC);
+
+        storeConstant(Processor.regPC, pc + 4);
+        code.u1(ALOAD_2);
+        pushInt(Processor.regNextPC);
+        code.u1(ILOAD);
+        code.u1(TARGET);
+        code.u1(IASTORE);
+    }
+
+    /**
+     * Write the PC and nextPC of an instruction that may raise an exception.
+     * In a delay slot they were already written by the branch.
+     */
+    private void savePC(int pc, boolean inDelaySlot) {
+        if (inDelaySlot)
+            return;
+
+        storeConstant(Processor.regPC, pc);
+        storeConstant(Processor.regNextPC, pc + 4);
+    }
+
+    private void finishLoad(boolean loadPending) {
+        if (!loadPending)
+            return;
+
+        code.u1(ALOAD_1);
+        invokeProcessor("jitFinishLoad", "()V");
+    }
+
+    /**
+     * Push <tt>registers[rs] + imm</tt>.
+     */
+    private void address(Processor.Decoded decoded) {
+        loadRegister(decoded.rs);
+        if (decoded.imm != 0) {
+            pushInt(decoded.imm);
+            code.u1(IADD);
+        }
+    }
+
+    /**
+     * Push a register as a long, zero-extended if <i>unsigned</i>.
+     */
+    private void loadSource(int number, boolean unsigned) {
+        loadRegister(number);
+        code.u1(I2L);
+        if (unsigned) {
+            pushLong(0xFFFFFFFFL);
+            code.u1(LAND);
+        }
+    }
+
+    private void loadRegister(int number) {
+        // r0 is never written
+        if (number == 0) {
+            pushInt(0);
+            return;
+        }
+
+        code.u1(ALOAD_2);
+        pushInt(number);
+        code.u1(IALOAD);
+    }
+
+    /**
+     * Store the low or high word of the <tt>DST</tt> local in a register.
+     */
+    private void storeRegister(int number, boolean high) {
+        code.u1(ALOAD_2);
+        pushInt(number);
+        code.u1(LLOAD);
+        code.u1(DST);
+        if (high) {
+            pushInt(32);
+            code.u1(LSHR);
+        }
+        code.u1(L2I);
+        code.u1(IASTORE);
+    }
+
+    private void storeConstant(int number, int value) {
+        code.u1(ALOAD_2);
+        pushInt(number);
+        pushInt(value);
+        code.u1(IASTORE);
+    }
+
+    private void binary(int first, int second, int opcode) {
+        code.u1(LLOAD);
+        code.u1(first);
+        code.u1(LLOAD);
+        code.u1(second);
+        code.u1(opcode);
+    }
+
+    /**
+     * <tt>src2 <i>op</i> (src1 &amp; 0x1F)</tt>.
+     */
+    private void shift(int opcode) {
+        code.u1(LLOAD);
+        code.u1(SRC2);
+        code.u1(LLOAD);
+        code.u1(SRC1);
+        pushLong(0x1F);
+        code.u1(LAND);
+        code.u1(L2I);
+        code.u1(opcode);
+    }
+
+    private void invokeProcessor(String name, String type) {
+        code.u1(INVOKEVIRTUAL);
+        code.u2(methodRef(processor, name, type));
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            code.u1(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.u1(BIPUSH);
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.u1(SIPUSH);
+            code.u2(value);
+        } else {
+            code.u1(LDC_W);
+            code.u2(constant("I" + value, 3, value, 1));
+        }
+    }
+
+    private void pushLong(long value) {
+        if (value == 0) {
+            code.u1(LCONST_0);
+        } else if (value == 1) {
+            code.u1(LCONST_1);
+        } else {
+            code.u1(LDC2_W);
+            code.u2(constant("J" + value, 5, value, 2));
+        }
+    }
+
+    /**
+     * Emit a forward branch and return the position of its offset, to be
+     * filled in by <tt>bind()</tt>.
+     */
+    private int branch(int opcode) {
+        code.u1(opcode);
+        int at = code.size();
+        code.u2(0);
+        return at;
+    }
+
+    private void bind(int at) {
+        code.patch2(at, code.size() - (at - 1));
+    }
+
+    private static boolean isBranch(Processor.Decoded decoded) {
+        return Lib.test(Processor.Mips.BRANCH, decoded.flags);
+    }
+
+    private int utf8(String string) {
+        Integer index = constants.get("U" + string);
+        if (index != null)
+            return index;
+
+        pool.u1(1);
+        pool.u2(string.length());
+        for (int i = 0; i < string.length(); i++)
+            pool.u1(string.charAt(i));
+
+        return add("U" + string, 1);
+    }
+
+    private int classRef(String name) {
+        Integer index = constants.get("C" + name);
+        if (index != null)
+            return index;
+
+        int nameIndex = utf8(name);
+        pool.u1(7);
+        pool.u2(nameIndex);
+
+        return add("C" + name, 1);
+    }
+
+    private int methodRef(String owner, String name, String type) {
+        String key = "M" + owner + "." + name + type;
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(type);
+        pool.u1(12);
+        pool.u2(nameIndex);
+        pool.u2(typeIndex);
+        int nameAndType = add("N" + name + type, 1);
+
+        pool.u1(10);
+        pool.u2(ownerIndex);
+        pool.u2(nameAndType);
+
+        return add(key, 1);
+    }
+
+    private int constant(String key, int tag, long value, int slots) {
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+
+        pool.u1(tag);
+        if (slots == 2)
+            pool.u4((int) (value >> 32));
+        pool.u4((int) value);
+
+        return add(key, slots);
+    }
+
+    private int add(String key, int slots) {
+        int index = poolCount;
+        constants.put(key, index);
+        poolCount += slots;
+        return index;
+    }
+
+    /**
+     * A growable array of big-endian class file data.
+     */
+    private static class ByteBuffer {
+        private byte[] data = new byte[256];
+        private int size = 0;
+
+        void u1(int value) {
+            if (size == data.length) {
+                byte[] larger = new byte[data.length * 2];
+                System.arraycopy(data, 0, larger, 0, size);
+                data = larger;
+            }
+
+            data[size++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        void patch2(int at, int value) {
+            data[at] = (byte) (value >> 8);
+            data[at + 1] = (byte) value;
+        }
+
+        void append(ByteBuffer other) {
+            for (int i = 0; i < other.size; i++)
+                u1(other.data[i]);
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[size];
+            System.arraycopy(data, 0, result, 0, size);
+            return result;
+        }
+    }
+
+    private final int vaddr;
+    private final Processor.Decoded[] block;
+
+    private ByteBuffer code = new ByteBuffer();
+    private ByteBuffer pool = new ByteBuffer();
+    private HashMap<String, Integer> constants =
+            new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    private static final String processor = "nachos/machine/Processor";
+    private static final String compiledBlock =
+            "nachos/machine/Processor$CompiledBlock";
+    private static final String lib = "nachos/machine/Lib";
+
+    // locals of run(): this, processor, registers, then scratch
+    private static final int SRC1 = 3, SRC2 = 5, DST = 7, TARGET = 9,
+            TEMP = 10;
+    private static final int numLocals = 11, maxStack = 8;
+
+    private static final int
+            ACC_PUBLIC = 0x0001,
+            ACC_FINAL = 0x0010,
+            ACC_SUPER = 0x0020;
+
+    private static final int
+            ICONST_0 = 0x03,
+            LCONST_0 = 0x09,
+            LCONST_1 = 0x0a,
+            BIPUSH = 0x10,
+            SIPUSH = 0x11,
+            LDC_W = 0x13,
+            LDC2_W = 0x14,
+            ILOAD = 0x15,
+            LLOAD = 0x16,
+            ALOAD_0 = 0x2a,
+            ALOAD_1 = 0x2b,
+            ALOAD_2 = 0x2c,
+            IALOAD = 0x2e,
+            ISTORE = 0x36,
+            LSTORE = 0x37,
+            IASTORE = 0x4f,
+            IADD = 0x60,
+            LADD = 0x61,
+            LSUB = 0x65,
+            LMUL = 0x69,
+            LSHL = 0x79,
+            LSHR = 0x7b,
+            LUSHR = 0x7d,
+            LAND = 0x7f,
+            LOR = 0x81,
+            LXOR = 0x83,
+            I2L = 0x85,
+            L2I = 0x88,
+            LCMP = 0x94,
+            IFEQ = 0x99,
+            IFLT = 0x9b,
+            IFGE = 0x9c,
+            IFGT = 0x9d,
+            IFLE = 0x9e,
+            IF_ICMPEQ = 0x9f,
+            IF_ICMPNE = 0xa0,
+            GOTO = 0xa7,
+            IRETURN = 0xac,
+            RETURN = 0xb1,
+            INVOKEVIRTUAL = 0xb6,
+            INVOKESPECIAL = 0xb7,
+            INVOKESTATIC = 0xb8;
+}
@@ -0,0 +1,170 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Physical memory kept outside the Java heap, either in direct buffers or in
+ * a memory-mapped file. The garbage collector never scans it, and it can be
+ * as large as the 32-bit physical address space, so it suits simulated
+ * machines with gigabytes of memory.
+ *
+ * <p>
+ * A single buffer can hold at most 2<sup>31</sup> - 1 bytes, so the memory is
+ * split into chunks of 2<sup>30</sup> bytes. Physical addresses are treated
+ * as unsigned.
+ */
+public final class BufferMemory implements PhysicalMemory {
+    /**
+     * Allocate a new memory of the specified size in direct buffers.
+     *
+     * @param    size    the size of the memory, in bytes.
+     */
+    public BufferMemory(long size) {
+        checkSize(size);
+
+        chunks = new ByteBuffer[numChunks(size)];
+        for (int i = 0; i < chunks.length; i++)
+            chunks[i] = ByteBuffer.allocateDirect(chunkLength(size, i))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Allocate a new memory of the specified size by mapping a file. The
+     * file is grown to <i>size</i> bytes if needed, and its existing contents
+     * become the initial contents of the memory. The mapping stays valid
+     * after the channel is closed.
+     *
+     * @param    size    the size of the memory, in bytes.
+     * @param    channel    a channel open for reading and writing on the
+     * file to map.
+     * @throws IOException if the file could not be mapped.
+     */
+    public BufferMemory(long size, FileChannel channel) throws IOException {
+        checkSize(size);
+
+        chunks = new ByteBuffer[numChunks(size)];
+        for (int i = 0; i < chunks.length; i++)
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    (long) i << chunkShift, chunkLength(size, i))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void checkSize(long size) {
+        Lib.assertTrue(size >= 0 && size <= 0x100000000L,
+                "physical memory larger than the address space");
+    }
+
+    private static int numChunks(long size) {
+        return (int) ((size + chunkSize - 1) >>> chunkShift);
+    }
+
+    private static int chunkLength(long size, int chunk) {
+        return (int) Math.min(chunkSize, size - ((long) chunk << chunkShift));
+    }
+
+    public int read(int paddr, int size) {
+        ByteBuffer chunk = chunks[paddr >>> chunkShift];
+        int index = paddr & chunkMask;
+
+        switch (size) {
+            case 1:
+                return chunk.get(index);
+            case 2:
+                return chunk.getShort(index);
+            case 4:
+                return chunk.getInt(index);
+            default:
+                Lib.assertNotReached();
+                return -1;
+        }
+    }
+
+    public int readWord(int paddr) {
+        return chunks[paddr >>> chunkShift].getInt(paddr & chunkMask);
+    }
+
+    public void write(int paddr, int size, int value) {
+        ByteBuffer chunk = chunks[paddr >>> chunkShift];
+        int index = paddr & chunkMask;
+
+        switch (size) {
+            case 1:
+                chunk.put(index, (byte) value);
+                break;
+            case 2:
+                chunk.putShort(index, (short) value);
+                break;
+            case 4:
+                chunk.putInt(index, value);
+                break;
+            default:
+                Lib.assertNotReached();
+        }
+    }
+
+    public void read(int paddr, byte[] data, int offset, int length) {
+        long address = paddr & 0xFFFFFFFFL;
+
+        while (length > 0) {
+            ByteBuffer chunk = slice(address);
+            int amount = Math.min(length, chunk.remaining());
+
+            chunk.get(data, offset, amount);
+            address += amount;
+            offset += amount;
+            length -= amount;
+        }
+    }
+
+    public void write(int paddr, byte[] data, int offset, int length) {
+        long address = paddr & 0xFFFFFFFFL;
+
+        while (length > 0) {
+            ByteBuffer chunk = slice(address);
+            int amount = Math.min(length, chunk.remaining());
+
+            chunk.put(data, offset, amount);
+            address += amount;
+            offset += amount;
+            length -= amount;
+        }
+    }
+
+    public void zero(int paddr, int length) {
+        long address = paddr & 0xFFFFFFFFL;
+
+        while (length > 0) {
+            ByteBuffer chunk = slice(address);
+            int amount = Math.min(length, chunk.remaining());
+
+            for (int done = 0; done < amount; done += zeros.length)
+                chunk.put(zeros, 0, Math.min(zeros.length, amount - done));
+            address += amount;
+            length -= amount;
+        }
+    }
+
+    /**
+     * Return a view of the chunk holding <i>address</i>, positioned at
+     * <i>address</i>. Bulk copies go through a view so that concurrent
+     * copies never share a buffer position.
+     */
+    private ByteBuffer slice(long address) {
+        ByteBuffer chunk = chunks[(int) (address >>> chunkShift)].duplicate();
+        chunk.position((int) (address & chunkMask));
+        return chunk;
+    }
+
+    private ByteBuffer[] chunks;
+
+    private static final int chunkShift = 30;
+    private static final int chunkSize = 1 << chunkShift;
+    private static final int chunkMask = chunkSize - 1;
+
+    private static final byte[] zeros = new byte[Processor.pageSize];
+}
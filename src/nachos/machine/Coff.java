@@ -3,6 +3,9 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * A COFF (common object file format) loader.
@@ -11,6 +14,11 @@ public class Coff {
     private static final int headerLength = 20;
     private static final int aoutHeaderLength = 28;
     private static final char dbgCoff = 'c';
+    private static final int symbolicMagic = 0x7009;
+    private static final int symbolicHeaderLength = 96;
+    private static final int fileDescriptorLength = 72;
+    private static final int procedureDescriptorLength = 52;
+    private static final int symbolLength = 12;
     /**
      * The virtual address of the first instruction of the program.
      */
@@ -20,6 +28,15 @@ public class Coff {
      */
     protected CoffSection sections[];
     private OpenFile file;
+    /**
+     * The file offset of the symbol table, or 0 if there is none.
+     */
+    private int symbolTableOffset = 0;
+    /**
+     * The procedures in the symbol table, read when first asked for, or by
+     * the profiler when the executable is opened.
+     */
+    private CoffProcedure[] procedures = null;
 
     /**
      * Allocate a new Coff object.
@@ -72,6 +89,7 @@ public class Coff {
             int numSections = Lib.bytesToUnsignedShort(headers, 2);
             int optionalHeaderLength = Lib.bytesToUnsignedShort(headers, 16);
             int flags = Lib.bytesToUnsignedShort(headers, 18);
+            symbolTableOffset = Lib.bytesToInt(headers, 8);
             entryPoint = Lib.bytesToInt(headers, headerLength + 16);
 
             if (magic != 0x0162) {
@@ -100,6 +118,9 @@ public class Coff {
                     throw e;
                 }
             }
+
+            if (Machine.processor() != null)
+                Machine.processor().executableOpened(this);
         }
     }
 
@@ -138,6 +159,148 @@ public class Coff {
         return entryPoint;
     }
 
+    /**
+     * Return the file the executable was loaded from.
+     *
+     * @return the file, or <tt>null</tt> if there is none.
+     */
+    OpenFile getFile() {
+        return file;
+    }
+
+    /**
+     * Return the name of the executable file.
+     *
+     * @return the name of the file, or <tt>null</tt> if there is none.
+     */
+    public String getName() {
+        return (file == null) ? null : file.getName();
+    }
+
+    /**
+     * Return the procedures described by the symbol table, sorted by address.
+     * Unless the profiler has already read them from the host file, the
+     * symbol table is read through the file the first time this is called,
+     * so the file must not have been closed.
+     *
+     * <p>
+     * The MIPS compiler writes an ECOFF symbolic header in place of a COFF
+     * symbol table. Its procedure descriptors give the address and stack
+     * frame of each procedure, and point to the local symbol holding its
+     * name.
+     *
+     * @return the procedures, or an empty array if the executable has no
+     * symbols.
+     */
+    public CoffProcedure[] getProcedures() {
+        if (procedures == null) {
+            byte[] symbols = null;
+            if (file != null && symbolTableOffset > 0
+                    && symbolTableOffset + symbolicHeaderLength
+                    <= file.length()) {
+                symbols = new byte[file.length() - symbolTableOffset];
+                Lib.strictReadFile(file, symbolTableOffset, symbols, 0,
+                        symbols.length);
+            }
+
+            procedures = parseProcedures(symbols);
+        }
+
+        return procedures;
+    }
+
+    /**
+     * Read the procedures from the contents of the executable, as read from
+     * the host without going through the simulated file system. Called by
+     * the profiler when the executable is opened.
+     *
+     * @param    contents    the whole executable file.
+     */
+    void readProcedures(byte[] contents) {
+        byte[] symbols = null;
+        if (symbolTableOffset > 0
+                && symbolTableOffset + symbolicHeaderLength
+                <= contents.length) {
+            symbols = Arrays.copyOfRange(contents, symbolTableOffset,
+                    contents.length);
+        }
+
+        procedures = parseProcedures(symbols);
+    }
+
+    private CoffProcedure[] parseProcedures(byte[] symbols) {
+        if (symbols == null)
+            return new CoffProcedure[0];
+
+        try {
+            return parseSymbolicHeader(symbols);
+        } catch (IndexOutOfBoundsException e) {
+            Lib.debug(dbgCoff, "\tbad symbol table");
+            return new CoffProcedure[0];
+        }
+    }
+
+    private CoffProcedure[] parseSymbolicHeader(byte[] symbols) {
+        // the offsets in the symbolic header are from the start of the file
+        int base = symbolTableOffset;
+
+        if (Lib.bytesToUnsignedShort(symbols, 0) != symbolicMagic) {
+            Lib.debug(dbgCoff, "\tno symbolic header");
+            return new CoffProcedure[0];
+        }
+
+        int pdOffset = Lib.bytesToInt(symbols, 28) - base;
+        int symOffset = Lib.bytesToInt(symbols, 36) - base;
+        int ssOffset = Lib.bytesToInt(symbols, 60) - base;
+        int fdMax = Lib.bytesToInt(symbols, 72);
+        int fdOffset = Lib.bytesToInt(symbols, 76) - base;
+
+        ArrayList<CoffProcedure> result = new ArrayList<CoffProcedure>();
+
+        // each file descriptor holds the procedures of one source file
+        for (int fd = 0; fd < fdMax; fd++) {
+            int fdEntry = fdOffset + fd * fileDescriptorLength;
+            int fileAddress = Lib.bytesToInt(symbols, fdEntry);
+            int issBase = Lib.bytesToInt(symbols, fdEntry + 8);
+            int isymBase = Lib.bytesToInt(symbols, fdEntry + 16);
+            int pdFirst = Lib.bytesToUnsignedShort(symbols, fdEntry + 40);
+            int pdCount = Lib.bytesToUnsignedShort(symbols, fdEntry + 42);
+
+            for (int pd = pdFirst; pd < pdFirst + pdCount; pd++) {
+                int pdEntry = pdOffset + pd * procedureDescriptorLength;
+                int address = fileAddress + Lib.bytesToInt(symbols, pdEntry);
+                int isym = Lib.bytesToInt(symbols, pdEntry + 4);
+
+                String name;
+                if (isym >= 0) {
+                    int symEntry = symOffset + (isymBase + isym) * symbolLength;
+                    int iss = Lib.bytesToInt(symbols, symEntry);
+                    int nameOffset = ssOffset + issBase + iss;
+                    name = Lib.bytesToString(symbols, nameOffset,
+                            symbols.length - nameOffset);
+                } else {
+                    name = "0x" + Lib.toHexString(address);
+                }
+
+                result.add(new CoffProcedure(name, address,
+                        Lib.bytesToInt(symbols, pdEntry + 32),
+                        Lib.bytesToInt(symbols, pdEntry + 12),
+                        Lib.bytesToInt(symbols, pdEntry + 16)));
+            }
+        }
+
+        CoffProcedure[] sorted = result.toArray(new CoffProcedure[0]);
+        Arrays.sort(sorted, new Comparator<CoffProcedure>() {
+            public int compare(CoffProcedure a, CoffProcedure b) {
+                return Integer.compareUnsigned(a.address, b.address);
+            }
+        });
+
+        Lib.debug(dbgCoff, "\tread " + sorted.length + " procedures");
+
+        return sorted;
+    }
+
     /**
      * Close the executable file and release any resources allocated by this
      * loader.
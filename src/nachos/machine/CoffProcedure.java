@@ -0,0 +1,73 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A procedure described by the symbol table of a COFF executable: its name,
+ * where it starts, and how it lays out its stack frame.
+ *
+ * @see Coff#getProcedures
+ */
+public final class CoffProcedure {
+    /**
+     * The name of the procedure.
+     */
+    public final String name;
+    /**
+     * The virtual address of the first instruction of the procedure.
+     */
+    public final int address;
+    /**
+     * The size of the stack frame, in bytes. The frame starts this far above
+     * the stack pointer once the procedure has set it up.
+     */
+    public final int frameSize;
+    /**
+     * A bit mask of the registers the procedure saves in its frame. Bit 31
+     * is set if it saves the return address.
+     */
+    public final int savedRegisters;
+    /**
+     * The offset, from the top of the frame, at which the highest numbered
+     * saved register is stored. The others follow at lower addresses.
+     */
+    public final int savedRegisterOffset;
+
+    /**
+     * Allocate a new procedure.
+     *
+     * @param    name    the name of the procedure.
+     * @param    address    the address of its first instruction.
+     * @param    frameSize    the size of its stack frame.
+     * @param    savedRegisters    the registers it saves.
+     * @param    savedRegisterOffset    where it saves them.
+     */
+    public CoffProcedure(String name, int address, int frameSize,
+                         int savedRegisters, int savedRegisterOffset) {
+        this.name = name;
+        this.address = address;
+        this.frameSize = frameSize;
+        this.savedRegisters = savedRegisters;
+        this.savedRegisterOffset = savedRegisterOffset;
+    }
+
+    /**
+     * Return whether the procedure saves the return address in its frame.
+     * Procedures that do not are leaves, which return through <tt>$31</tt>.
+     *
+     * @return <tt>true</tt> if the return address is saved.
+     */
+    public boolean savesReturnAddress() {
+        return (savedRegisters & (1 << Processor.regRA)) != 0;
+    }
+
+    /**
+     * Return the offset, from the stack pointer inside the procedure, of
+     * the saved return address.
+     *
+     * @return the offset of the saved return address.
+     */
+    public int returnAddressOffset() {
+        return frameSize + savedRegisterOffset;
+    }
+}
@@ -3,7 +3,6 @@
 package nachos.machine;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -211,7 +210,7 @@ public class CoffSection {
         Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
 
         int pageSize = Processor.pageSize;
-        byte[] memory = Machine.processor().getMemory();
+        PhysicalMemory memory = Machine.processor().getPhysicalMemory();
         int paddr = ppn * pageSize;
         int faddr = contentOffset + spn * pageSize;
         int initlen;
@@ -227,9 +226,15 @@ public class CoffSection {
         else
             initlen = pageSize;
 
-        if (initlen > 0)
-            Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+        if (initlen > 0) {
+            byte[] data = new byte[initlen];
+            Lib.strictReadFile(file, faddr, data, 0, initlen);
+            memory.write(paddr, data, 0, initlen);
+        }
+
+        memory.zero(paddr + initlen, pageSize - initlen);
 
-        Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+        Machine.processor().invalidatePage(ppn);
+        Machine.processor().coffPageLoaded(coff, ppn);
     }
 }
@@ -4,8 +4,10 @@ package nachos.machine;
 
 import nachos.security.Privilege;
 
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -43,7 +45,46 @@ public final class Interrupt {
     private long numPendingInterruptsCreated = 0;
     private Privilege privilege;
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private boolean userTick = false;
+
+    /**
+     * The pending interrupts, kept in reusable slots so that scheduling
+     * allocates nothing once the arrays are large enough. Each slot holds the
+     * time, id, type and handler of one interrupt; free slots are stacked in
+     * <tt>freeSlots</tt>.
+     */
+    private long[] slotTime;
+    private long[] slotId;
+    private String[] slotType;
+    private Runnable[] slotHandler;
+    private int[] freeSlots;
+    private int numFreeSlots;
+    /**
+     * A timing wheel holding the interrupts due less than
+     * <tt>nearWindow</tt> ticks after they were scheduled, which is almost
+     * all of them. Each bucket is a list, linked through <tt>slotNext</tt>,
+     * of the interrupts due at one time, in the order they were scheduled.
+     * No two pending times share a bucket, because those interrupts are all
+     * due within <tt>nearWindow</tt> ticks of the current time, and the wheel
+     * is twice as long. <tt>nearBits</tt> marks the buckets in use, and
+     * <tt>nearFirst</tt> is the earliest slot in the wheel, or -1.
+     */
+    private int[] bucketHead, bucketTail;
+    private long[] nearBits;
+    private int[] slotNext;
+    private int numNear = 0;
+    private int nearFirst = -1;
+    /**
+     * A binary min-heap of the other slots in use, ordered by time and then
+     * by id, so interrupts due at the same time run in the order they were
+     * scheduled.
+     */
+    private int[] heap;
+    private int heapSize = 0;
+
+    private static final int initialSlots = 16;
+    private static final int nearWindow = 1024;
+    private static final int wheelLength = 2 * nearWindow;
 
     /**
      * Allocate a new interrupt controller.
@@ -58,7 +99,21 @@ public final class Interrupt {
         privilege.interrupt = new InterruptPrivilege();
 
         enabled = false;
-        pending = new TreeSet<PendingInterrupt>();
+
+        slotTime = new long[initialSlots];
+        slotId = new long[initialSlots];
+        slotType = new String[initialSlots];
+        slotHandler = new Runnable[initialSlots];
+        heap = new int[initialSlots];
+        slotNext = new int[initialSlots];
+        freeSlots = new int[initialSlots];
+        for (int i = 0; i < initialSlots; i++)
+            freeSlots[i] = initialSlots - 1 - i;
+        numFreeSlots = initialSlots;
+
+        bucketHead = new int[wheelLength];
+        bucketTail = new int[wheelLength];
+        nearBits = new long[wheelLength / 64];
     }
 
     /**
@@ -129,18 +184,310 @@ public final class Interrupt {
         Lib.assertTrue(when > 0);
 
         long time = privilege.stats.totalTicks + when;
-        PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-        Lib.debug(dbgInt,
-                "Scheduling the " + type +
-                        " interrupt handler at time = " + time);
+        if (Lib.test(dbgInt))
+            System.out.println("Scheduling the " + type +
+                    " interrupt handler at time = " + time);
+
+        int slot = allocateSlot();
+        slotTime[slot] = time;
+        slotId[slot] = numPendingInterruptsCreated++;
+        slotType[slot] = type;
+        slotHandler[slot] = handler;
+
+        if (when < nearWindow)
+            addNear(slot);
+        else
+            push(slot);
+    }
+
+    /**
+     * Remove every pending interrupt that would call <i>handler</i>. The
+     * rest keep their order.
+     *
+     * @param    handler    the interrupt handler.
+     */
+    private void cancel(Runnable handler) {
+        int kept = 0;
+        for (int i = 0; i < heapSize; i++) {
+            int slot = heap[i];
+            if (slotHandler[slot] == handler)
+                freeSlot(slot);
+            else
+                heap[kept++] = slot;
+        }
+
+        if (kept != heapSize) {
+            heapSize = kept;
+            for (int i = heapSize / 2 - 1; i >= 0; i--)
+                siftDown(i, heap[i]);
+        }
+
+        if (numNear == 0)
+            return;
+
+        // rebuild each bucket without the cancelled slots
+        nearFirst = -1;
+        for (int bucket = nextBucket(0); bucket != -1;
+             bucket = nextBucket(bucket + 1)) {
+            int slot = bucketHead[bucket];
+            bucketHead[bucket] = -1;
+
+            for (; slot != -1; slot = slotNext[slot]) {
+                if (slotHandler[slot] == handler) {
+                    freeSlot(slot);
+                    numNear--;
+                    continue;
+                }
+
+                if (bucketHead[bucket] == -1)
+                    bucketHead[bucket] = slot;
+                else
+                    slotNext[bucketTail[bucket]] = slot;
+                bucketTail[bucket] = slot;
+            }
+
+            if (bucketHead[bucket] == -1) {
+                nearBits[bucket >>> 6] &= ~(1L << bucket);
+                continue;
+            }
+
+            slotNext[bucketTail[bucket]] = -1;
+            if (nearFirst == -1 || before(bucketHead[bucket], nearFirst))
+                nearFirst = bucketHead[bucket];
+
+            if (bucket == wheelLength - 1)
+                break;
+        }
+    }
+
+    /**
+     * Take a free slot, doubling the number of slots if none are left.
+     *
+     * @return the slot.
+     */
+    private int allocateSlot() {
+        if (numFreeSlots == 0) {
+            int oldLength = slotTime.length, newLength = oldLength * 2;
+
+            slotTime = Arrays.copyOf(slotTime, newLength);
+            slotId = Arrays.copyOf(slotId, newLength);
+            slotType = Arrays.copyOf(slotType, newLength);
+            slotHandler = Arrays.copyOf(slotHandler, newLength);
+            heap = Arrays.copyOf(heap, newLength);
+            slotNext = Arrays.copyOf(slotNext, newLength);
+            freeSlots = Arrays.copyOf(freeSlots, newLength);
+
+            for (int slot = newLength - 1; slot >= oldLength; slot--)
+                freeSlots[numFreeSlots++] = slot;
+        }
+
+        return freeSlots[--numFreeSlots];
+    }
+
+    private void freeSlot(int slot) {
+        slotType[slot] = null;
+        slotHandler[slot] = null;
+        freeSlots[numFreeSlots++] = slot;
+    }
+
+    /**
+     * Return whether the interrupt in slot <i>a</i> is due before the one in
+     * slot <i>b</i>.
+     */
+    private boolean before(int a, int b) {
+        return slotTime[a] < slotTime[b]
+                || (slotTime[a] == slotTime[b] && slotId[a] < slotId[b]);
+    }
+
+    /**
+     * Return the slot of the earliest pending interrupt.
+     *
+     * @return the slot, or -1 if no interrupts are pending.
+     */
+    private int first() {
+        if (heapSize == 0)
+            return nearFirst;
+        if (nearFirst == -1 || before(heap[0], nearFirst))
+            return heap[0];
+        return nearFirst;
+    }
+
+    /**
+     * Remove the earliest pending interrupt. There must be one.
+     *
+     * @return its slot.
+     */
+    private int removeFirst() {
+        if (nearFirst == -1 || (heapSize > 0 && before(heap[0], nearFirst)))
+            return pop();
+
+        int slot = nearFirst;
+        int bucket = (int) (slotTime[slot] & (wheelLength - 1));
+
+        bucketHead[bucket] = slotNext[slot];
+        numNear--;
+
+        if (bucketHead[bucket] == -1) {
+            nearBits[bucket >>> 6] &= ~(1L << bucket);
+            bucket = (numNear == 0) ? -1 : nextBucketAround(bucket);
+        }
+
+        nearFirst = (bucket == -1) ? -1 : bucketHead[bucket];
+        return slot;
+    }
+
+    /**
+     * Add a slot that is due less than <tt>nearWindow</tt> ticks from now to
+     * the timing wheel, in constant time.
+     *
+     * @param    slot    the slot, with its time and id set.
+     */
+    private void addNear(int slot) {
+        int bucket = (int) (slotTime[slot] & (wheelLength - 1));
+
+        slotNext[slot] = -1;
+        if ((nearBits[bucket >>> 6] & (1L << bucket)) == 0) {
+            nearBits[bucket >>> 6] |= 1L << bucket;
+            bucketHead[bucket] = slot;
+        } else {
+            slotNext[bucketTail[bucket]] = slot;
+        }
+        bucketTail[bucket] = slot;
+        numNear++;
+
+        if (nearFirst == -1 || before(slot, nearFirst))
+            nearFirst = slot;
+    }
+
+    /**
+     * Return the first bucket in use at or after <i>from</i>, without
+     * wrapping around.
+     *
+     * @param    from    the bucket to start at.
+     * @return the bucket, or -1 if there is none.
+     */
+    private int nextBucket(int from) {
+        if (from >= wheelLength)
+            return -1;
+
+        int word = from >>> 6;
+        long bits = nearBits[word] & (-1L << from);
+
+        while (bits == 0) {
+            if (++word == nearBits.length)
+                return -1;
+            bits = nearBits[word];
+        }
+
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Return the bucket of the earliest interrupt in the wheel, given that
+     * none are due before the one that was in <i>bucket</i>. They are all
+     * due less than the length of the wheel after it, so this is the first
+     * bucket in use after it, wrapping around.
+     *
+     * @param    bucket    the bucket just emptied.
+     * @return the bucket.
+     */
+    private int nextBucketAround(int bucket) {
+        int next = nextBucket(bucket + 1);
+        return (next != -1) ? next : nextBucket(0);
+    }
+
+    /**
+     * Add a slot to the heap. This takes up to one comparison per level,
+     * but only interrupts due far in the future, or restored from a
+     * snapshot, go in the heap.
+     *
+     * @param    slot    the slot, with its time and id set.
+     */
+    private void push(int slot) {
+        int i = heapSize++;
+
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(slot, heap[parent]))
+                break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+
+        heap[i] = slot;
+    }
+
+    /**
+     * Remove the earliest slot from the heap. The heap must not be empty.
+     *
+     * @return the slot.
+     */
+    private int pop() {
+        int first = heap[0];
+        int last = heap[--heapSize];
+
+        if (heapSize > 0)
+            siftDown(0, last);
+
+        return first;
+    }
+
+    /**
+     * Put <i>slot</i> at position <i>i</i> of the heap, or below it, where
+     * it is no later than its children.
+     *
+     * @param    i    the position in the heap.
+     * @param    slot    the slot to place.
+     */
+    private void siftDown(int i, int slot) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize)
+                break;
+            if (child + 1 < heapSize && before(heap[child + 1], heap[child]))
+                child++;
+            if (!before(heap[child], slot))
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
 
-        pending.add(toOccur);
+        heap[i] = slot;
+    }
+
+    /**
+     * Return the slots in use, in the order their interrupts are due.
+     *
+     * @return the slots.
+     */
+    private int[] sortedSlots() {
+        int[] sorted = Arrays.copyOf(heap, heapSize + numNear);
+
+        int count = heapSize;
+        for (int bucket = nextBucket(0); bucket != -1;
+             bucket = nextBucket(bucket + 1)) {
+            for (int slot = bucketHead[bucket]; slot != -1;
+                 slot = slotNext[slot])
+                sorted[count++] = slot;
+        }
+
+        // there are only ever a few pending interrupts
+        for (int i = 1; i < sorted.length; i++) {
+            int slot = sorted[i], j = i;
+            for (; j > 0 && before(slot, sorted[j - 1]); j--)
+                sorted[j] = sorted[j - 1];
+            sorted[j] = slot;
+        }
+
+        return sorted;
     }
 
     private void tick(boolean inKernelMode) {
         Stats stats = privilege.stats;
 
+        userTick = !inKernelMode;
+
         if (inKernelMode) {
             stats.kernelTicks += Stats.KernelTick;
             stats.totalTicks += Stats.KernelTick;
@@ -157,6 +504,91 @@ public final class Interrupt {
         enabled = true;
     }
 
+    /**
+     * Advance the simulated time by <i>count</i> user ticks at once, and then
+     * invoke any interrupts that have come due. The caller must already know
+     * that no interrupt falls due before the last of these ticks, so the
+     * result is the same as calling <tt>tick(false)</tt> <i>count</i> times.
+     *
+     * @param    count    the number of user ticks to advance.
+     */
+    private void tickUser(int count) {
+        // interrupt tracing prints every tick, so keep it that way
+        if (Lib.test(dbgInt)) {
+            for (int i = 0; i < count; i++)
+                tick(false);
+            return;
+        }
+
+        Stats stats = privilege.stats;
+
+        Lib.assertTrue(count > 0 && nextInterruptTime() >
+                stats.totalTicks + (long) (count - 1) * Stats.UserTick);
+
+        userTick = true;
+        stats.userTicks += (long) count * Stats.UserTick;
+        stats.totalTicks += (long) count * Stats.UserTick;
+
+        enabled = false;
+        checkIfDue();
+        enabled = true;
+    }
+
+    /**
+     * Skip the kernel ticks that would pass before the next pending interrupt
+     * if the kernel had nothing to do but enable and disable interrupts. The
+     * time is left one kernel tick short of the tick on which the interrupt
+     * comes due, so the next time interrupts are enabled it is invoked at
+     * the same time as it would have been without skipping.
+     *
+     * <p>
+     * The kernel should call this, with interrupts disabled, when it is
+     * about to run the idle thread. Nothing else must happen before
+     * interrupts are next enabled.
+     */
+    public void idle() {
+        Lib.assertTrue(disabled());
+
+        // interrupt tracing prints every tick, so keep them
+        if (first() == -1 || Lib.test(dbgInt))
+            return;
+
+        Stats stats = privilege.stats;
+
+        long skipped = (slotTime[first()] - stats.totalTicks - 1)
+                / Stats.KernelTick;
+        if (skipped <= 0)
+            return;
+
+        stats.kernelTicks += skipped * Stats.KernelTick;
+        stats.totalTicks += skipped * Stats.KernelTick;
+    }
+
+    /**
+     * Return whether the latest tick was a user tick, in which case the
+     * interrupts it invokes arrive between two user instructions and the
+     * processor registers belong to the user program.
+     *
+     * @return <tt>true</tt> if the latest tick was a user tick.
+     */
+    boolean inUserTick() {
+        return userTick;
+    }
+
+    /**
+     * Return the time at which the earliest pending interrupt is due.
+     *
+     * @return the time of the next interrupt, or <tt>Long.MAX_VALUE</tt> if
+     * none are pending.
+     */
+    private long nextInterruptTime() {
+        int slot = first();
+        if (slot == -1)
+            return Long.MAX_VALUE;
+
+        return slotTime[slot];
+    }
+
     private void checkIfDue() {
         long time = privilege.stats.totalTicks;
 
@@ -165,73 +597,116 @@ public final class Interrupt {
         if (Lib.test(dbgInt))
             print();
 
-        if (pending.isEmpty())
-            return;
-
-        if (((PendingInterrupt) pending.first()).time > time)
+        if (nextInterruptTime() > time)
             return;
 
-        Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+        if (Lib.test(dbgInt))
+            System.out.println("Invoking interrupt handlers at time = "
+                    + time);
 
-        while (!pending.isEmpty() &&
-                ((PendingInterrupt) pending.first()).time <= time) {
-            PendingInterrupt next = (PendingInterrupt) pending.first();
-            pending.remove(next);
+        while (nextInterruptTime() <= time) {
+            int slot = removeFirst();
+            String type = slotType[slot];
+            Runnable handler = slotHandler[slot];
 
-            Lib.assertTrue(next.time <= time);
+            // the handler may schedule into this slot again
+            freeSlot(slot);
 
             if (privilege.processor != null)
                 privilege.processor.flushPipe();
 
-            Lib.debug(dbgInt, "  " + next.type);
+            if (Lib.test(dbgInt))
+                System.out.println("  " + type);
 
-            next.handler.run();
+            handler.run();
         }
 
         Lib.debug(dbgInt, "  (end of list)");
     }
 
-    private void print() {
-        System.out.println("Time: " + privilege.stats.totalTicks
-                + ", interrupts " + (enabled ? "on" : "off"));
-        System.out.println("Pending interrupts:");
+    /**
+     * Write the pending interrupts to a machine snapshot, as the time and
+     * type of each.
+     *
+     * @param    out    the snapshot being written.
+     */
+    void saveSnapshot(DataOutput out) throws IOException {
+        int[] slots = sortedSlots();
 
-        for (Iterator i = pending.iterator(); i.hasNext(); ) {
-            PendingInterrupt toOccur = (PendingInterrupt) i.next();
-            System.out.println("  " + toOccur.type +
-                    ", scheduled at " + toOccur.time);
-        }
+        out.writeInt(slots.length);
 
-        System.out.println("  (end of list)");
+        for (int slot : slots) {
+            out.writeLong(slotTime[slot]);
+            out.writeUTF(slotType[slot]);
+        }
     }
 
-    private class PendingInterrupt implements Comparable {
-        long time;
-        String type;
-        Runnable handler;
-        private long id;
-        PendingInterrupt(long time, String type, Runnable handler) {
-            this.time = time;
-            this.type = type;
-            this.handler = handler;
-            this.id = numPendingInterruptsCreated++;
+    /**
+     * Move the pending interrupts to the times saved in a machine snapshot
+     * that was taken at time <i>now</i>. Handlers cannot be saved, so each
+     * saved interrupt is matched, in order, with a pending one of the same
+     * type; these are the ones the devices scheduled when this run started.
+     * A pending interrupt with no match keeps its delay from the current
+     * time, and a saved interrupt with no match is dropped.
+     *
+     * @param    in    the snapshot being read.
+     * @param    now    the time at which the snapshot was taken.
+     */
+    void restoreSnapshot(DataInput in, long now) throws IOException {
+        long delta = now - privilege.stats.totalTicks;
+
+        // slots keep their ids, so ties still break in scheduling order
+        int[] unmatched = sortedSlots();
+        boolean[] matched = new boolean[unmatched.length];
+        heapSize = 0;
+
+        // the times move, so everything goes in the heap
+        Arrays.fill(nearBits, 0);
+        numNear = 0;
+        nearFirst = -1;
+
+        for (int count = in.readInt(); count > 0; count--) {
+            long time = in.readLong();
+            String type = in.readUTF();
+
+            int match = -1;
+            for (int i = 0; i < unmatched.length; i++) {
+                if (!matched[i] && slotType[unmatched[i]].equals(type)) {
+                    matched[i] = true;
+                    match = unmatched[i];
+                    break;
+                }
+            }
+
+            if (match == -1) {
+                Lib.debug(dbgInt, "Dropping the " + type
+                        + " interrupt at time = " + time);
+                continue;
+            }
+
+            slotTime[match] = time;
+            push(match);
         }
 
-        public int compareTo(Object o) {
-            PendingInterrupt toOccur = (PendingInterrupt) o;
+        for (int i = 0; i < unmatched.length; i++) {
+            if (!matched[i]) {
+                slotTime[unmatched[i]] += delta;
+                push(unmatched[i]);
+            }
+        }
+    }
 
-            // can't return 0 for unequal objects, so check all fields
-            if (time < toOccur.time)
-                return -1;
-            else if (time > toOccur.time)
-                return 1;
-            else if (id < toOccur.id)
-                return -1;
-            else if (id > toOccur.id)
-                return 1;
-            else
-                return 0;
+    private void print() {
+        System.out.println("Time: " + privilege.stats.totalTicks
+                + ", interrupts " + (enabled ? "on" : "off"));
+        System.out.println("Pending interrupts:");
+
+        for (int slot : sortedSlots()) {
+            System.out.println("  " + slotType[slot] +
+                    ", scheduled at " + slotTime[slot]);
         }
+
+        System.out.println("  (end of list)");
     }
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
@@ -239,8 +714,20 @@ public final class Interrupt {
             Interrupt.this.schedule(when, type, handler);
         }
 
+        public void cancel(Runnable handler) {
+            Interrupt.this.cancel(handler);
+        }
+
         public void tick(boolean inKernelMode) {
             Interrupt.this.tick(inKernelMode);
         }
+
+        public void tickUser(int count) {
+            Interrupt.this.tickUser(count);
+        }
+
+        public long nextInterruptTime() {
+            return Interrupt.this.nextInterruptTime();
+        }
     }
 }
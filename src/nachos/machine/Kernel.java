@@ -2,6 +2,10 @@
 
 package nachos.machine;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * An OS kernel.
  */
@@ -43,5 +47,36 @@ public abstract class Kernel {
      * Terminate this kernel. Never returns.
      */
     public abstract void terminate();
+
+    /**
+     * Save the state of this kernel as part of a machine snapshot. Called
+     * from an interrupt handler, so the kernel must not block. The machine
+     * saves the processor, memory, pending interrupts and statistics on its
+     * own; the kernel saves whatever it needs to carry on from them, such as
+     * the state of the running process.
+     *
+     * <p>
+     * The default kernel cannot be snapshotted and returns <tt>false</tt>.
+     *
+     * @param    out    the snapshot being written.
+     * @return <tt>true</tt> if the state was saved, or <tt>false</tt> if the
+     * kernel is not at a point where it can be snapshotted, in which case the
+     * machine tries again on the next tick.
+     */
+    public boolean saveSnapshot(DataOutput out) throws IOException {
+        return false;
+    }
+
+    /**
+     * Restore the state saved by <tt>saveSnapshot()</tt>, after the machine
+     * state has been restored, and arrange for the saved user programs to
+     * continue. Called by <tt>Machine.restoreSnapshot()</tt>, which a kernel
+     * calls from <tt>run()</tt> in place of starting its programs.
+     *
+     * @param    in    the snapshot being read.
+     */
+    public void restoreSnapshot(DataInput in) throws IOException {
+        Lib.assertNotReached("this kernel cannot restore snapshots");
+    }
 }
 
@@ -25,7 +25,7 @@ class AssertionFailureError extends Error {
  * Provides miscellaneous library routines.
  */
 public final class Lib {
-    private static Random random = null;
+    private static SavedRandom random = null;
     /**
      * Debug flags specified on the command line.
      */
@@ -44,7 +44,7 @@ public final class Lib {
      */
     public static void seedRandom(long randomSeed) {
         assertTrue(random == null);
-        random = new Random(randomSeed);
+        random = new SavedRandom(randomSeed);
     }
 
     /**
@@ -69,6 +69,27 @@ public final class Lib {
         return random.nextDouble();
     }
 
+    /**
+     * Return the state of the random number generator, for a machine
+     * snapshot.
+     *
+     * @return the seed of the generator.
+     */
+    static long saveRandom() {
+        return random.seed;
+    }
+
+    /**
+     * Put the random number generator back in a state returned by
+     * <tt>saveRandom()</tt>, so that a restored machine draws the same
+     * numbers as the one that was snapshotted.
+     *
+     * @param    seed    the seed of the generator.
+     */
+    static void restoreRandom(long seed) {
+        random.seed = seed;
+    }
+
     /**
      * Asserts that <i>expression</i> is <tt>true</tt>. If not, then Nachos
      * exits with an error message.
@@ -630,4 +651,32 @@ public final class Lib {
             Lib.assertNotReached();
         }
     }
+
+    /**
+     * The generator of <tt>java.util.Random</tt>, which produces exactly the
+     * same numbers, but whose seed can be read and written for snapshots.
+     */
+    private static class SavedRandom extends Random {
+        private static final long serialVersionUID = 1L;
+
+        SavedRandom(long seed) {
+            super(seed);
+        }
+
+        public void setSeed(long seed) {
+            // called by the superclass constructor
+            this.seed = (seed ^ multiplier) & mask;
+        }
+
+        protected int next(int bits) {
+            seed = (seed * multiplier + addend) & mask;
+            return (int) (seed >>> (48 - bits));
+        }
+
+        long seed;
+
+        private static final long multiplier = 0x5DEECE66DL;
+        private static final long addend = 0xBL;
+        private static final long mask = (1L << 48) - 1;
+    }
 }
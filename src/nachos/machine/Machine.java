@@ -23,8 +23,13 @@ public final class Machine {
                     "\t-h\n" +
                     "\t\tPrint this help message.\n" +
                     "\n" +
-                    "\t-m <pages>\n" +
-                    "\t\tSpecify how many physical pages of memory to simulate.\n" +
+                    "\t-m <pages>[:<memory>]\n" +
+                    "\t\tSpecify how many physical pages of memory to simulate, and\n" +
+                    "\t\toptionally where to keep them (array, direct or mapped).\n" +
+                    "\n" +
+                    "\t-r <snapshot file>\n" +
+                    "\t\tResume from a machine snapshot, instead of starting the\n" +
+                    "\t\tkernel's programs from scratch\n" +
                     "\n" +
                     "\t-s <seed>\n" +
                     "\t\tSpecify the seed for the random number generator (seed is a\n" +
@@ -85,7 +90,10 @@ public final class Machine {
     private static Privilege privilege;
     private static String[] args = null;
     private static Stats stats = new Stats();
+    private static Metrics metrics = null;
     private static int numPhysPages = -1;
+    private static String memoryType = null;
+    private static String restoreFileName = null;
     private static long randomSeed = 0;
     private static File baseDirectory, nachosDirectory, testDirectory;
     private static String configFileName = "nachos.conf";
@@ -135,10 +143,13 @@ public final class Machine {
 
         TCB.givePrivilege(privilege);
         privilege.stats = stats;
+        metrics = new Metrics(privilege);
 
         securityManager.enable();
         createDevices();
         checkUserClasses();
+        scheduleSnapshot();
+        metrics.start();
 
         autoGrader = (AutoGrader) Lib.constructObject(autoGraderClassName);
 
@@ -183,9 +194,31 @@ public final class Machine {
     public static void halt() {
         System.out.print("Machine halting!\n\n");
         stats.print();
+        if (processor != null) {
+            processor.writeProfile();
+            processor.closeTrace();
+        }
+        metrics.halt();
         terminate();
     }
 
+    /**
+     * Restore the machine from the snapshot given with the <tt>-r</tt>
+     * switch, if any, and then call <tt>Kernel.restoreSnapshot()</tt> to
+     * restore the kernel. A kernel that supports snapshots calls this at the
+     * start of <tt>run()</tt>, and only starts its programs if it returns
+     * <tt>false</tt>.
+     *
+     * @return <tt>true</tt> if a snapshot was restored.
+     */
+    public static boolean restoreSnapshot() {
+        if (restoreFileName == null)
+            return false;
+
+        new Snapshot(privilege).restore(restoreFileName);
+        return true;
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -212,10 +245,19 @@ public final class Machine {
                 } else if (arg.equals("-m")) {
                     Lib.assertTrue(i < args.length, "switch without argument");
                     try {
-                        numPhysPages = Integer.parseInt(args[i++]);
+                        String value = args[i++];
+                        int colon = value.indexOf(':');
+                        if (colon != -1) {
+                            memoryType = value.substring(colon + 1);
+                            value = value.substring(0, colon);
+                        }
+                        numPhysPages = Integer.parseInt(value);
                     } catch (NumberFormatException e) {
                         Lib.assertNotReached("bad value for -m switch");
                     }
+                } else if (arg.equals("-r")) {
+                    Lib.assertTrue(i < args.length, "switch without argument");
+                    restoreFileName = args[i++];
                 } else if (arg.equals("-s")) {
                     Lib.assertTrue(i < args.length, "switch without argument");
                     try {
@@ -254,7 +296,9 @@ public final class Machine {
         if (Config.getBoolean("Machine.processor")) {
             if (numPhysPages == -1)
                 numPhysPages = Config.getInteger("Processor.numPhysPages");
-            processor = new Processor(privilege, numPhysPages);
+            if (memoryType == null)
+                memoryType = Config.getString("Processor.memory", "array");
+            processor = new Processor(privilege, numPhysPages, memoryType);
         }
 
         if (Config.getBoolean("Machine.console"))
@@ -267,6 +311,33 @@ public final class Machine {
             networkLink = new NetworkLink(privilege);
     }
 
+    /**
+     * Arrange to write a snapshot of the machine to
+     * <tt>Machine.snapshotFile</tt> once the time reaches
+     * <tt>Machine.snapshotTick</tt>, if those are set.
+     */
+    private static void scheduleSnapshot() {
+        final String fileName = Config.getString("Machine.snapshotFile", null);
+        if (fileName == null)
+            return;
+
+        Lib.assertTrue(restoreFileName == null,
+                "cannot take a snapshot of a restored machine");
+
+        privilege.interrupt.schedule(Config.getInteger("Machine.snapshotTick"),
+                "snapshot", new Runnable() {
+                    public void run() {
+                        // try again a timer interval later if the kernel is
+                        // busy; retrying every tick would keep an interrupt
+                        // due next tick, which stops idle skipping, tick
+                        // batching, and compiled blocks
+                        if (!new Snapshot(privilege).save(fileName))
+                            privilege.interrupt.schedule(Stats.TimerTicks,
+                                    "snapshot", this);
+                    }
+                });
+    }
+
     private static void checkUserClasses() {
         System.out.print(" user-check");
 
@@ -394,6 +465,15 @@ public final class Machine {
         return bank;
     }
 
+    /**
+     * Return the metrics registry.
+     *
+     * @return the metrics registry.
+     */
+    public static Metrics metrics() {
+        return metrics;
+    }
+
     /**
      * Return the MIPS processor.
      *
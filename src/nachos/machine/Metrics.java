@@ -0,0 +1,455 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.Privilege;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * A registry of named metrics: counters, gauges, and histograms of
+ * durations in ticks. The machine registers the <tt>Stats</tt> fields, and
+ * the kernel adds its own, such as per-thread and per-process accounting.
+ * Names are made of parts separated by dots, like
+ * <tt>process.1.syscalls</tt>.
+ *
+ * <p>
+ * If <tt>Metrics.file</tt> is set, every metric is written to that file when
+ * the machine halts, and also every <tt>Metrics.exportTicks</tt> ticks if
+ * that is set. <tt>Metrics.format</tt> chooses between <tt>json</tt>, one
+ * JSON object per export, and <tt>csv</tt>, one row per value. If
+ * <tt>Metrics.jmx</tt> is set, the values can also be read through a JMX
+ * MBean named <tt>nachos:type=Metrics</tt> while Nachos runs.
+ */
+public final class Metrics {
+    /**
+     * Allocate a new metrics registry, holding the statistics, and register
+     * its MBean if <tt>Metrics.jmx</tt> is set. Must be called before the
+     * security manager is enabled.
+     *
+     * @param    privilege    encapsulates privileged access to the Nachos
+     * machine.
+     */
+    public Metrics(Privilege privilege) {
+        this.privilege = privilege;
+
+        privilege.stats.register(this);
+
+        // the platform MBean server needs permissions Nachos never grants,
+        // so it must be set up before the security manager is enabled
+        if (Config.getBoolean("Metrics.jmx", false)) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new MBean(), new ObjectName("nachos:type=Metrics"));
+            } catch (Exception e) {
+                System.out.println("Could not register metrics MBean: " + e);
+            }
+        }
+    }
+
+    /**
+     * A metric whose value is read when it is exported.
+     */
+    public interface Gauge {
+        /**
+         * Return the current value.
+         *
+         * @return the value.
+         */
+        public long value();
+    }
+
+    /**
+     * A count of events.
+     */
+    public static final class Counter implements Gauge {
+        private long value = 0;
+
+        private Counter() {
+        }
+
+        /**
+         * Count one event.
+         */
+        public void increment() {
+            value++;
+        }
+
+        /**
+         * Count <i>amount</i> events.
+         *
+         * @param    amount    the number of events.
+         */
+        public void add(long amount) {
+            value += amount;
+        }
+
+        public long value() {
+            return value;
+        }
+    }
+
+    /**
+     * A distribution of durations, in ticks. Durations are counted in
+     * buckets by powers of two: bucket <i>i</i> counts the durations that
+     * need <i>i</i> bits, so bucket 0 holds 0, bucket 1 holds 1, bucket 2
+     * holds 2 and 3, and so on.
+     */
+    public static final class Histogram {
+        private long count = 0, sum = 0;
+        private long min = Long.MAX_VALUE, max = 0;
+        private long[] buckets = new long[65];
+
+        private Histogram() {
+        }
+
+        /**
+         * Record a duration. Negative durations count as 0.
+         *
+         * @param    ticks    the duration.
+         */
+        public void record(long ticks) {
+            if (ticks < 0)
+                ticks = 0;
+
+            count++;
+            sum += ticks;
+            if (ticks < min)
+                min = ticks;
+            if (ticks > max)
+                max = ticks;
+
+            buckets[64 - Long.numberOfLeadingZeros(ticks)]++;
+        }
+
+        /**
+         * Return the number of durations recorded.
+         *
+         * @return the count.
+         */
+        public long count() {
+            return count;
+        }
+
+        private void flatten(String name, Map<String, Long> values) {
+            values.put(name + ".count", count);
+            values.put(name + ".sum", sum);
+            values.put(name + ".min", (count == 0) ? 0 : min);
+            values.put(name + ".max", max);
+
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] != 0)
+                    values.put(name + ".le." + upperBound(i), buckets[i]);
+            }
+        }
+
+        private static long upperBound(int bucket) {
+            return (bucket == 64) ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+    }
+
+    /**
+     * Return the counter with the specified name, creating it if needed.
+     *
+     * @param    name    the name of the counter.
+     * @return the counter.
+     */
+    public synchronized Counter counter(String name) {
+        Gauge counter = counters.get(name);
+        if (counter == null) {
+            checkName(name);
+            counter = new Counter();
+            counters.put(name, counter);
+        }
+
+        Lib.assertTrue(counter instanceof Counter,
+                "metric is not a counter: " + name);
+        return (Counter) counter;
+    }
+
+    /**
+     * Register a counter whose value is kept elsewhere, such as one of the
+     * <tt>Stats</tt> fields.
+     *
+     * @param    name    the name of the counter.
+     * @param    source    reads the value.
+     */
+    public synchronized void counter(String name, Gauge source) {
+        checkName(name);
+        counters.put(name, source);
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of the same name.
+     *
+     * @param    name    the name of the gauge.
+     * @param    gauge    reads the value.
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        checkName(name);
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Return the histogram with the specified name, creating it if needed.
+     *
+     * @param    name    the name of the histogram.
+     * @return the histogram.
+     */
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            checkName(name);
+            histogram = new Histogram();
+            histograms.put(name, histogram);
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Remove the counter, gauge, or histogram with the specified name, if
+     * there is one, so that metrics of things that no longer exist do not
+     * pile up.
+     *
+     * @param    name    the name of the metric.
+     */
+    public synchronized void remove(String name) {
+        counters.remove(name);
+        gauges.remove(name);
+        histograms.remove(name);
+    }
+
+    private static void checkName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            Lib.assertTrue(Character.isLetterOrDigit(c) || c == '.'
+                    || c == '_' || c == '-', "bad metric name: " + name);
+        }
+    }
+
+    /**
+     * Return every value, with histograms split into their count, sum,
+     * minimum, maximum, and nonempty buckets.
+     *
+     * @return the values, by name.
+     */
+    public synchronized TreeMap<String, Long> values() {
+        TreeMap<String, Long> values = new TreeMap<String, Long>();
+
+        for (Map.Entry<String, Gauge> entry : counters.entrySet())
+            values.put(entry.getKey(), entry.getValue().value());
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+            values.put(entry.getKey(), entry.getValue().value());
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+            entry.getValue().flatten(entry.getKey(), values);
+
+        return values;
+    }
+
+    /**
+     * Open the export file and schedule periodic exports, if
+     * <tt>Metrics.file</tt> is set. Called once the devices exist.
+     */
+    void start() {
+        final String fileName = Config.getString("Metrics.file", null);
+        if (fileName != null) {
+            String format = Config.getString("Metrics.format", "json");
+            Lib.assertTrue(format.equals("json") || format.equals("csv"),
+                    "unknown Metrics.format: " + format);
+            csv = format.equals("csv");
+
+            Object result = privilege.doPrivileged(new PrivilegedAction<Object>() {
+                public Object run() {
+                    try {
+                        return new PrintWriter(new OutputStreamWriter(
+                                new FileOutputStream(fileName)));
+                    } catch (IOException e) {
+                        return e;
+                    }
+                }
+            });
+
+            Lib.assertTrue(result instanceof PrintWriter,
+                    "could not open metrics file: " + result);
+            out = (PrintWriter) result;
+
+            if (csv)
+                out.println("tick,metric,value");
+
+            exportTicks = Config.getInteger("Metrics.exportTicks", 0);
+            Lib.assertTrue(exportTicks >= 0,
+                    "Metrics.exportTicks must not be negative");
+            if (exportTicks > 0) {
+                exportInterrupt = new Runnable() {
+                    public void run() {
+                        export();
+                        privilege.interrupt.schedule(exportTicks, "metrics",
+                                exportInterrupt);
+                    }
+                };
+                privilege.interrupt.schedule(exportTicks, "metrics",
+                        exportInterrupt);
+            }
+        }
+    }
+
+    /**
+     * Export the final values, if exporting. Called when the machine halts.
+     */
+    void halt() {
+        if (out != null) {
+            export();
+            out.close();
+            out = null;
+        }
+    }
+
+    private void export() {
+        long tick = privilege.stats.totalTicks;
+
+        if (csv)
+            exportCSV(tick);
+        else
+            exportJSON(tick);
+
+        out.flush();
+    }
+
+    private void exportCSV(long tick) {
+        for (Map.Entry<String, Long> entry : values().entrySet())
+            out.println(tick + "," + entry.getKey() + "," + entry.getValue());
+    }
+
+    private synchronized void exportJSON(long tick) {
+        StringBuilder line = new StringBuilder();
+        line.append("{\"tick\":").append(tick);
+
+        line.append(",\"counters\":{");
+        appendGauges(line, counters);
+        line.append("},\"gauges\":{");
+        appendGauges(line, gauges);
+        line.append("},\"histograms\":{");
+
+        String separator = "";
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+
+            line.append(separator).append('"').append(entry.getKey())
+                    .append("\":{\"count\":").append(histogram.count)
+                    .append(",\"sum\":").append(histogram.sum)
+                    .append(",\"min\":")
+                    .append((histogram.count == 0) ? 0 : histogram.min)
+                    .append(",\"max\":").append(histogram.max)
+                    .append(",\"buckets\":{");
+
+            String bucketSeparator = "";
+            for (int i = 0; i < histogram.buckets.length; i++) {
+                if (histogram.buckets[i] != 0) {
+                    line.append(bucketSeparator).append('"')
+                            .append(Histogram.upperBound(i)).append("\":")
+                            .append(histogram.buckets[i]);
+                    bucketSeparator = ",";
+                }
+            }
+
+            line.append("}}");
+            separator = ",";
+        }
+
+        line.append("}}");
+        out.println(line);
+    }
+
+    private static void appendGauges(StringBuilder line,
+                                     TreeMap<String, Gauge> gauges) {
+        String separator = "";
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            line.append(separator).append('"').append(entry.getKey())
+                    .append("\":").append(entry.getValue().value());
+            separator = ",";
+        }
+    }
+
+    /**
+     * Shows the values as read-only attributes, named as by
+     * <tt>values()</tt>.
+     */
+    private class MBean implements DynamicMBean {
+        public Object getAttribute(String name)
+                throws AttributeNotFoundException {
+            Long value = values().get(name);
+            if (value == null)
+                throw new AttributeNotFoundException(name);
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] names) {
+            TreeMap<String, Long> values = values();
+
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (values.containsKey(name))
+                    list.add(new Attribute(name, values.get(name)));
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute)
+                throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName()
+                    + " is read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String action, Object[] params,
+                             String[] signature) throws ReflectionException {
+            throw new ReflectionException(
+                    new NoSuchMethodException(action));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            ArrayList<MBeanAttributeInfo> attributes =
+                    new ArrayList<MBeanAttributeInfo>();
+            for (String name : values().keySet())
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long",
+                        name, true, false, false));
+
+            return new MBeanInfo(Metrics.class.getName(), "Nachos metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null,
+                    new MBeanOperationInfo[0], null);
+        }
+    }
+
+    private Privilege privilege;
+
+    private TreeMap<String, Gauge> counters = new TreeMap<String, Gauge>();
+    private TreeMap<String, Gauge> gauges = new TreeMap<String, Gauge>();
+    private TreeMap<String, Histogram> histograms =
+            new TreeMap<String, Histogram>();
+
+    private PrintWriter out = null;
+    private boolean csv;
+    private int exportTicks;
+    private Runnable exportInterrupt;
+}
@@ -0,0 +1,70 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * The storage behind the physical memory of a <tt>Processor</tt>. Addresses
+ * are physical byte addresses. Values are little-endian, and 2- and 4-byte
+ * accesses are aligned to their size.
+ *
+ * <p>
+ * Kernels that copy to or from user memory should use the bulk methods here
+ * rather than <tt>Processor.getMemory()</tt>, which only works when the
+ * memory is a Java array.
+ */
+public interface PhysicalMemory {
+    /**
+     * Read 1, 2 or 4 bytes. As with <tt>Lib.bytesToInt()</tt>, 1- and 2-byte
+     * values are sign-extended.
+     *
+     * @param    paddr    the physical address to read.
+     * @param    size    the number of bytes to read.
+     * @return the value read.
+     */
+    public int read(int paddr, int size);
+
+    /**
+     * Read an aligned 4-byte word. Same as <tt>read(paddr, 4)</tt>.
+     *
+     * @param    paddr    the physical address to read.
+     * @return the value read.
+     */
+    public int readWord(int paddr);
+
+    /**
+     * Write the low 1, 2 or 4 bytes of <i>value</i>.
+     *
+     * @param    paddr    the physical address to write.
+     * @param    size    the number of bytes to write.
+     * @param    value    the value to write.
+     */
+    public void write(int paddr, int size, int value);
+
+    /**
+     * Copy bytes out of memory into an array.
+     *
+     * @param    paddr    the first physical address to read.
+     * @param    data    the array to copy into.
+     * @param    offset    the first byte to write in the array.
+     * @param    length    the number of bytes to copy.
+     */
+    public void read(int paddr, byte[] data, int offset, int length);
+
+    /**
+     * Copy bytes from an array into memory.
+     *
+     * @param    paddr    the first physical address to write.
+     * @param    data    the array to copy from.
+     * @param    offset    the first byte to read in the array.
+     * @param    length    the number of bytes to copy.
+     */
+    public void write(int paddr, byte[] data, int offset, int length);
+
+    /**
+     * Fill a range of memory with zeros.
+     *
+     * @param    paddr    the first physical address to clear.
+     * @param    length    the number of bytes to clear.
+     */
+    public void zero(int paddr, int length);
+}
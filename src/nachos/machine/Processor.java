@@ -4,6 +4,15 @@ package nachos.machine;
 
 import nachos.security.Privilege;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -133,9 +142,51 @@ public final class Processor {
      * Number of pages in a 32-bit address space.
      */
     public static final int maxPages = (int) (0x100000000L / pageSize);
+    /**
+     * The valid bit in the flags of a TLB entry.
+     */
+    public static final int tlbValid = 0x1;
+    /**
+     * The read-only bit in the flags of a TLB entry.
+     */
+    public static final int tlbReadOnly = 0x2;
+    /**
+     * The used bit in the flags of a TLB entry.
+     */
+    public static final int tlbUsed = 0x4;
+    /**
+     * The dirty bit in the flags of a TLB entry.
+     */
+    public static final int tlbDirty = 0x8;
+    /**
+     * The number of ints <tt>saveTLB()</tt> stores for each TLB entry: the
+     * vpn, the ppn and the flags, in that order.
+     */
+    public static final int tlbEntryInts = 3;
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    /**
+     * The longest basic block the threaded engine will build. Blocks also end
+     * at a branch delay slot, at a syscall or illegal instruction, and at the
+     * end of a physical page.
+     */
+    private static final int maxBlockLength = 64;
+    /**
+     * The number of times a block runs through its handlers before the JIT
+     * engine compiles it, unless <tt>Processor.jitThreshold</tt> is set.
+     */
+    private static final int defaultJitThreshold = 50;
+    /**
+     * The number of records in the trace file, unless
+     * <tt>Processor.traceRecords</tt> is set: 32MB worth.
+     */
+    private static final int defaultTraceRecords = 1 << 20;
+    /**
+     * The most user instructions whose ticks are held back at once when
+     * batching ticks, so the statistics never fall far behind.
+     */
+    private static final int maxTickBatch = 10000;
     /**
      * Provides privilege to this processor.
      */
@@ -156,17 +207,34 @@ public final class Processor {
      * The value to be loaded by the delayed load currently in progress.
      */
     private int loadValue;
+    /**
+     * <tt>true</tt> if the registers were restored from a snapshot, so the
+     * next call to <tt>run()</tt> continues at <tt>regNextPC</tt> as saved.
+     */
+    private boolean resumed = false;
     /**
      * <tt>true</tt> if using a software-managed TLB.
      */
     private boolean usingTLB;
     /**
-     * Number of TLB entries.
+     * Number of TLB entries. Set from the <tt>Processor.tlbSize</tt>
+     * configuration key.
      */
     private int tlbSize = 4;
     /**
-     * Either an associative or direct-mapped set of translation entries,
-     * depending on whether there is a TLB.
+     * The TLB, one array per field. The flags are the <tt>tlbValid</tt>,
+     * <tt>tlbReadOnly</tt>, <tt>tlbUsed</tt> and <tt>tlbDirty</tt> bits.
+     */
+    private int[] tlbVpn, tlbPpn, tlbFlags;
+    /**
+     * The TLB slots found by recent lookups, or <tt>-1</tt>, indexed by the
+     * low bits of their virtual page number. The TLB only changes through
+     * the <tt>write</tt> and <tt>restore</tt> methods, which clear the slots
+     * they could affect, so a hit needs no check beyond the vpn.
+     */
+    private int[] tlbCache;
+    /**
+     * The page table, if there is no TLB.
      */
     private TranslationEntry[] translations;
     /**
@@ -176,11 +244,82 @@ public final class Processor {
     /**
      * Main memory for user programs.
      */
-    private byte[] mainMemory;
+    private PhysicalMemory memory;
+    /**
+     * Decoded instructions, indexed by physical page number and then by word
+     * within the page. The array for a page is allocated the first time an
+     * instruction is fetched from that page, so pages that only ever hold
+     * data cost a single <tt>null</tt> check on each store.
+     */
+    private Decoded[][] decodeCache;
+    /**
+     * <tt>true</tt> if <tt>run()</tt> should use the threaded basic-block
+     * engine rather than the one-instruction-at-a-time interpreter. Set from
+     * the <tt>Processor.engine</tt> configuration key.
+     */
+    private boolean threaded;
+    /**
+     * Basic blocks built by the threaded engine, indexed by the physical page
+     * and word of their first instruction, like <tt>decodeCache</tt>.
+     */
+    private Block[][] blockCache;
+    /**
+     * <tt>true</tt> if user ticks are charged in batches that end where the
+     * next interrupt is due, rather than one instruction at a time. Set from
+     * the <tt>Processor.batchTicks</tt> configuration key.
+     */
+    private boolean batchTicks;
+    /**
+     * The number of completed user instructions not yet charged to the
+     * interrupt controller.
+     */
+    private int untickedInstructions = 0;
+    /**
+     * The number of user instructions that may complete, counting from the
+     * last flush, before the next interrupt is due.
+     */
+    private int tickBudget = 0;
+    /**
+     * The number of runs after which a block is compiled to JVM bytecode, or
+     * <tt>0</tt> if the JIT is not in use.
+     */
+    private int jitThreshold = 0;
+    /**
+     * Bumped whenever a physical page holding decoded instructions is
+     * written by a user store or invalidated. A compiled block whose page
+     * has a new version is recompiled before it runs again. Writes from the
+     * kernel may not bump it, so compiled blocks also check their
+     * instruction words each time they run.
+     */
+    private int[] codeVersion;
+    /**
+     * The number of blocks compiled so far, used to name their classes.
+     */
+    private int numCompiledBlocks = 0;
     /**
      * The kernel exception handler, called on every user exception.
      */
     private Runnable exceptionHandler = null;
+    /**
+     * One reusable exception per cause. Guest exceptions happen on every
+     * syscall, page fault and TLB miss, so they are neither allocated nor
+     * given a stack trace when thrown.
+     */
+    private MipsException[] exceptions =
+            new MipsException[exceptionNames.length];
+    /**
+     * The profiler, or <tt>null</tt> if not profiling.
+     */
+    private Profiler profiler = null;
+    /**
+     * Where to record instructions and memory accesses, or <tt>null</tt> if
+     * not tracing.
+     */
+    private TraceSink trace = null;
+    /**
+     * The word of the instruction being interpreted, for trace records.
+     */
+    private int tracedInstruction = 0;
     /**
      * Allocate a new MIPS processor, with the specified amount of memory.
      *
@@ -190,6 +329,30 @@ public final class Processor {
      * attach.
      */
     public Processor(Privilege privilege, int numPhysPages) {
+        this(privilege, numPhysPages,
+                Config.getString("Processor.memory", "array"));
+    }
+
+    /**
+     * Allocate a new MIPS processor, with the specified amount of memory
+     * kept in the specified kind of storage:
+     *
+     * <ul>
+     * <li><tt>array</tt>, a Java byte array. Limited to less than 2GB.
+     * <li><tt>direct</tt>, direct buffers outside the Java heap. The JVM
+     * must allow enough direct memory (<tt>-XX:MaxDirectMemorySize</tt>).
+     * <li><tt>mapped</tt>, a memory-mapped file, named by
+     * <tt>Processor.memoryFile</tt>, or a temporary file if that is not set.
+     * </ul>
+     *
+     * @param    privilege encapsulates privileged access to the Nachos
+     * machine.
+     * @param    numPhysPages    the number of pages of physical memory to
+     * attach.
+     * @param    memoryType    the kind of storage for physical memory.
+     */
+    public Processor(Privilege privilege, int numPhysPages,
+                     String memoryType) {
         System.out.print(" processor");
 
         this.privilege = privilege;
@@ -206,15 +369,146 @@ public final class Processor {
         for (int i = 0; i < numUserRegisters; i++)
             registers[i] = 0;
 
-        mainMemory = new byte[pageSize * numPhysPages];
+        for (int i = 0; i < exceptions.length; i++)
+            exceptions[i] = new MipsException(i);
+
+        Lib.assertTrue(numPhysPages > 0 && numPhysPages <= maxPages,
+                "bad number of physical pages: " + numPhysPages);
+        memory = createMemory(memoryType, (long) pageSize * numPhysPages);
+        decodeCache = new Decoded[numPhysPages][];
+        blockCache = new Block[numPhysPages][];
+        codeVersion = new int[numPhysPages];
+
+        String engine = Config.getString("Processor.engine", "interpreter");
+        if (engine.equals("threaded")) {
+            threaded = true;
+        } else if (engine.equals("jit")) {
+            threaded = true;
+            jitThreshold = Config.getInteger("Processor.jitThreshold",
+                    defaultJitThreshold);
+            Lib.assertTrue(jitThreshold > 0,
+                    "Processor.jitThreshold must be positive");
+        } else
+            Lib.assertTrue(engine.equals("interpreter"),
+                    "unknown Processor.engine: " + engine);
+
+        // tracing interleaves output with every instruction, so it needs
+        // the ticks to happen in between
+        batchTicks = Config.getBoolean("Processor.batchTicks", false)
+                && !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+                && !Lib.test(dbgFullDisassemble);
 
         if (usingTLB) {
-            translations = new TranslationEntry[tlbSize];
-            for (int i = 0; i < tlbSize; i++)
-                translations[i] = new TranslationEntry();
-        } else {
-            translations = null;
+            tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+            Lib.assertTrue(tlbSize > 0, "Processor.tlbSize must be positive");
+
+            tlbVpn = new int[tlbSize];
+            tlbPpn = new int[tlbSize];
+            tlbFlags = new int[tlbSize];
+
+            // a power of two with room to spare, so a full TLB rarely
+            // collides with itself
+            int cacheSize = 16;
+            while (cacheSize < tlbSize * 2)
+                cacheSize *= 2;
+            tlbCache = new int[cacheSize];
+            Arrays.fill(tlbCache, -1);
+        }
+
+        String profile = Config.getString("Processor.profile", null);
+        if (profile != null)
+            profiler = new Profiler(this, privilege, profile);
+
+        String traceFile = Config.getString("Processor.traceFile", null);
+        if (traceFile != null)
+            trace = createTrace(traceFile,
+                    Config.getInteger("Processor.traceRecords",
+                            defaultTraceRecords));
+
+        translations = null;
+    }
+
+    /**
+     * Map a trace buffer holding <i>capacity</i> records, replacing the
+     * contents of <i>fileName</i>.
+     *
+     * @param    fileName    the file to map.
+     * @param    capacity    the number of records.
+     * @return the new trace buffer.
+     */
+    private TraceBuffer createTrace(final String fileName,
+                                    final int capacity) {
+        Lib.assertTrue(capacity > 0 && capacity <= TraceBuffer.maxCapacity,
+                "bad Processor.traceRecords: " + capacity);
+
+        Object result = privilege.doPrivileged(new PrivilegedAction<Object>() {
+            public Object run() {
+                try (RandomAccessFile raf =
+                             new RandomAccessFile(fileName, "rw")) {
+                    raf.setLength(TraceBuffer.fileLength(capacity));
+                    return new TraceBuffer(raf.getChannel(), capacity);
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        });
+
+        Lib.assertTrue(result instanceof TraceBuffer,
+                "could not map trace file: " + result);
+
+        return (TraceBuffer) result;
+    }
+
+    /**
+     * Allocate physical memory of the specified kind and size.
+     *
+     * @param    memoryType    <tt>array</tt>, <tt>direct</tt> or
+     * <tt>mapped</tt>.
+     * @param    size        the size of the memory, in bytes.
+     * @return the new memory.
+     */
+    private PhysicalMemory createMemory(String memoryType, final long size) {
+        if (memoryType.equals("array")) {
+            Lib.assertTrue(size <= Integer.MAX_VALUE,
+                    "physical memory too large for an array, "
+                            + "use Processor.memory = direct or mapped");
+            return new ArrayMemory((int) size);
+        } else if (memoryType.equals("direct")) {
+            return new BufferMemory(size);
         }
+
+        Lib.assertTrue(memoryType.equals("mapped"),
+                "unknown physical memory type: " + memoryType);
+
+        final String fileName = Config.getString("Processor.memoryFile", null);
+
+        Object result = privilege.doPrivileged(new PrivilegedAction<Object>() {
+            public Object run() {
+                try {
+                    File file;
+                    if (fileName != null) {
+                        file = new File(fileName);
+                    } else {
+                        file = File.createTempFile("nachos", ".mem");
+                        file.deleteOnExit();
+                    }
+
+                    try (RandomAccessFile raf =
+                                 new RandomAccessFile(file, "rw")) {
+                        if (raf.length() < size)
+                            raf.setLength(size);
+                        return new BufferMemory(size, raf.getChannel());
+                    }
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        });
+
+        Lib.assertTrue(result instanceof BufferMemory,
+                "could not map physical memory: " + result);
+
+        return (PhysicalMemory) result;
     }
 
     /**
@@ -279,25 +573,525 @@ public final class Processor {
     }
 
     /**
-     * Start executing instructions at the current PC. Never returns.
+     * Set the trace sink, which is given a record of every instruction
+     * fetch, data memory access and exception from then on. Setting
+     * <tt>Processor.traceFile</tt> sets a <tt>TraceBuffer</tt> mapped from
+     * that file, holding the latest <tt>Processor.traceRecords</tt> records.
+     *
+     * <p>
+     * Tracing runs every instruction through the interpreter, so the sink
+     * must be set before <tt>run()</tt> is called to take effect with the
+     * threaded or JIT engine.
+     *
+     * @param    trace    the trace sink, or <tt>null</tt> to stop tracing.
+     */
+    public void setTraceSink(TraceSink trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Start executing instructions at the current PC, or where the processor
+     * left off if it was just restored from a snapshot. Never returns.
      */
     public void run() {
         Lib.debug(dbgProcessor, "starting program in current thread");
 
-        registers[regNextPC] = registers[regPC] + 4;
+        if (resumed)
+            resumed = false;
+        else
+            registers[regNextPC] = registers[regPC] + 4;
 
         Machine.autoGrader().runProcessor(privilege);
 
+        // the threaded engine does not print or record anything, so tracing
+        // always goes through the interpreter
+        if (threaded && trace == null && !Lib.test(dbgProcessor)
+                && !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble)) {
+            runThreaded();
+        }
+
         Instruction inst = new Instruction();
 
         while (true) {
             try {
                 inst.run();
             } catch (MipsException e) {
-                e.handle();
+                handleException(e);
+                continue;
+            }
+
+            userTicks(1);
+        }
+    }
+
+    /**
+     * Return the simulated time, counting the instructions held back by
+     * batching, for trace records.
+     *
+     * @return the time.
+     */
+    private long traceTick() {
+        return privilege.stats.totalTicks
+                + (long) untickedInstructions * Stats.UserTick;
+    }
+
+    /**
+     * Charge the ticks of <i>count</i> completed user instructions. When
+     * batching ticks, they are only handed to the interrupt controller once
+     * the batch reaches the next interrupt, which is then invoked on the
+     * same tick as it would have been otherwise.
+     *
+     * @param    count    the number of instructions completed.
+     */
+    private void userTicks(int count) {
+        if (!batchTicks) {
+            if (count == 1)
+                privilege.interrupt.tick(false);
+            else
+                privilege.interrupt.tickUser(count);
+            return;
+        }
+
+        untickedInstructions += count;
+        if (untickedInstructions >= tickBudget)
+            flushTicks();
+    }
+
+    /**
+     * Charge any ticks held back by batching, invoking the interrupts that
+     * come due, and start a new batch ending at the next interrupt.
+     */
+    private void flushTicks() {
+        int count = untickedInstructions;
+        if (count > 0) {
+            // clear first, the interrupt may switch to another user thread
+            untickedInstructions = 0;
+            privilege.interrupt.tickUser(count);
+        }
+
+        long slack = (privilege.interrupt.nextInterruptTime()
+                - privilege.stats.totalTicks) / Stats.UserTick;
+        tickBudget = (int) Math.max(1, Math.min(slack, maxTickBatch));
+    }
+
+    /**
+     * Return how many more user instructions can complete before the next
+     * interrupt is due.
+     *
+     * @return the number of instructions.
+     */
+    private long instructionsBeforeInterrupt() {
+        if (batchTicks)
+            return tickBudget - untickedInstructions;
+
+        return (privilege.interrupt.nextInterruptTime()
+                - privilege.stats.totalTicks) / Stats.UserTick;
+    }
+
+    /**
+     * Handle an exception raised by a user instruction. The instructions
+     * before it are charged first, so the kernel sees the right time, and
+     * the faulting instruction ticks after the handler returns.
+     *
+     * @param    e    the exception.
+     */
+    private void handleException(MipsException e) {
+        // e is shared by every exception with its cause, so nothing may run
+        // between the throw and handle() that could raise another one. The
+        // held-back ticks always end before the next interrupt is due, so
+        // charging them here never invokes an interrupt handler.
+        Lib.assertTrue(untickedInstructions == 0
+                || privilege.stats.totalTicks
+                + (long) untickedInstructions * Stats.UserTick
+                < privilege.interrupt.nextInterruptTime());
+
+        flushTicks();
+
+        e.handle();
+
+        privilege.interrupt.tick(false);
+
+        // the kernel may have advanced the time or scheduled interrupts
+        flushTicks();
+    }
+
+    /**
+     * Execute instructions a basic block at a time. Each block is a chain of
+     * handlers with their operands already bound, so there is no fetch,
+     * decode or dispatch on the operation for each instruction. Every
+     * instruction still translates its PC, and ticks once after completing or
+     * raising an exception, exactly as in the interpreter.
+     *
+     * <p>
+     * With the JIT engine, a block that has run <tt>jitThreshold</tt> times is
+     * compiled, and from then on runs as bytecode whenever no interrupt can
+     * come due before it finishes. Never returns.
+     */
+    private void runThreaded() {
+        Block previous = null;
+
+        while (true) {
+            try {
+                int paddr = translate(registers[regPC], 4, false);
+                Block block = findBlock(previous, paddr);
+                previous = block;
+
+                if (jitThreshold > 0 && runCompiled(block))
+                    continue;
+
+                Handler handler = block.first;
+                while (true) {
+                    // the word may have been rewritten since the block was
+                    // built; rebuild from here on the next pass
+                    if (memory.readWord(handler.paddr) != handler.value) {
+                        dropBlock(block);
+                        previous = null;
+                        break;
+                    }
+
+                    handler.execute();
+
+                    userTicks(1);
+
+                    handler = handler.next;
+                    if (handler == null)
+                        break;
+
+                    // an interrupt handler may have switched threads or
+                    // address spaces under us, so leave the block unless the
+                    // next PC still lands on the next handler
+                    if (translate(registers[regPC], 4, false)
+                            != handler.paddr) {
+                        previous = null;
+                        break;
+                    }
+                }
+            } catch (MipsException e) {
+                previous = null;
+                handleException(e);
+            }
+        }
+    }
+
+    /**
+     * Run the compiled form of a block if it has one and it is safe to use,
+     * compiling it first if it has just become hot. The compiled code does not
+     * tick, so it is only used when the next interrupt is due no earlier than
+     * the block's last instruction; the ticks are then charged together,
+     * which invokes that interrupt at the same time the handlers would have.
+     *
+     * @param    block    the block about to run.
+     * @return <tt>true</tt> if the block ran, <tt>false</tt> if it must run
+     * through its handlers.
+     * @exception MipsException    if an instruction in the block raised an
+     * exception, after the instructions before it have been ticked.
+     */
+    private boolean runCompiled(Block block) throws MipsException {
+        int entryPC = registers[regPC];
+        int ppn = pageFromAddress(block.paddr);
+
+        if (block.compiled != null &&
+                block.compiledVersion != codeVersion[ppn]) {
+            block.compiled = null;
+            block.executions = 0;
+        }
+
+        if (block.compiled == null) {
+            if (block.uncompilable || ++block.executions < jitThreshold)
+                return false;
+
+            compileBlock(block, entryPC);
+            if (block.compiled == null)
+                return false;
+        }
+
+        // the code was compiled for this PC, and for a block that is not
+        // entered in a delay slot
+        if (entryPC != block.compiledPC ||
+                registers[regNextPC] != entryPC + 4)
+            return false;
+
+        if (instructionsBeforeInterrupt() < block.length)
+            return false;
+
+        // the kernel may have rewritten the code without changing its
+        // version, through getMemory() or the memory backend; the handlers
+        // will find the changed word and drop the block
+        for (Handler handler = block.first; handler != null;
+             handler = handler.next) {
+            if (memory.readWord(handler.paddr) != handler.value)
+                return false;
+        }
+
+        int completed;
+        try {
+            completed = block.compiled.run(this, registers);
+        } catch (MipsException e) {
+            // the PC was saved before the instruction that raised the
+            // exception, so it tells how many instructions completed
+            completed = (registers[regPC] - entryPC) >>> 2;
+            if (completed > 0)
+                userTicks(completed);
+            throw e;
+        }
+
+        userTicks(completed);
+        return true;
+    }
+
+    /**
+     * Compile a block to a class of its own. A block that cannot be compiled
+     * is marked so that it keeps running through its handlers.
+     *
+     * @param    block    the block to compile.
+     * @param    pc    the virtual address the block is being run at.
+     */
+    private void compileBlock(Block block, int pc) {
+        Decoded[] instructions = new Decoded[block.length];
+        int i = 0;
+        for (Handler handler = block.first; handler != null;
+             handler = handler.next)
+            instructions[i++] = handler.decoded;
+
+        if (!BlockCompiler.canCompile(instructions)) {
+            block.uncompilable = true;
+            return;
+        }
+
+        final byte[] classFile = BlockCompiler.compile(
+                "nachos.machine.CompiledBlock" + numCompiledBlocks++, pc,
+                instructions);
+
+        Object result = privilege.doPrivileged(new PrivilegedAction<Object>() {
+            public Object run() {
+                try {
+                    return MethodHandles.lookup().defineClass(classFile)
+                            .getDeclaredConstructor().newInstance();
+                } catch (Throwable e) {
+                    return e;
+                }
             }
+        });
+
+        if (!(result instanceof CompiledBlock)) {
+            System.err.println("Warning: could not compile block at 0x"
+                    + Lib.toHexString(pc) + ": " + result);
+            block.uncompilable = true;
+            return;
+        }
+
+        block.compiled = (CompiledBlock) result;
+        block.compiledPC = pc;
+        block.compiledVersion = codeVersion[pageFromAddress(block.paddr)];
+    }
+
+    /**
+     * Find the block starting at the specified physical address, building it
+     * if necessary, and link it as a successor of the block that ran before
+     * it.
+     *
+     * @param    previous    the block that just ran, or <tt>null</tt>.
+     * @param    paddr        the physical address of the next instruction.
+     * @return the block starting at <i>paddr</i>.
+     */
+    private Block findBlock(Block previous, int paddr) {
+        if (previous != null) {
+            Block next = previous.successor;
+            if (next != null && next.paddr == paddr && !next.dropped)
+                return next;
+
+            next = previous.otherSuccessor;
+            if (next != null && next.paddr == paddr && !next.dropped)
+                return next;
+        }
+
+        int ppn = pageFromAddress(paddr);
+        int index = offsetFromAddress(paddr) / 4;
+
+        Block[] page = blockCache[ppn];
+        if (page == null) {
+            page = new Block[pageSize / 4];
+            blockCache[ppn] = page;
+        }
 
-            privilege.interrupt.tick(false);
+        Block block = page[index];
+        if (block == null) {
+            block = new Block(paddr);
+            page[index] = block;
+        }
+
+        if (previous != null) {
+            previous.otherSuccessor = previous.successor;
+            previous.successor = block;
+        }
+
+        return block;
+    }
+
+    /**
+     * Remove a block whose code has changed from the block cache, and mark it
+     * so that blocks linked to it stop using it.
+     *
+     * @param    block    the stale block.
+     */
+    private void dropBlock(Block block) {
+        block.dropped = true;
+
+        Block[] page = blockCache[pageFromAddress(block.paddr)];
+        if (page != null && page[offsetFromAddress(block.paddr) / 4] == block)
+            page[offsetFromAddress(block.paddr) / 4] = null;
+    }
+
+    /**
+     * Build the handler for one decoded instruction. This is the only place
+     * the threaded engine looks at the operation.
+     *
+     * @param    paddr    the physical address of the instruction.
+     * @param    decoded    the decoded instruction.
+     * @return a handler that executes the instruction.
+     */
+    private Handler newHandler(int paddr, Decoded decoded) {
+        switch (decoded.operation) {
+            case Mips.ADD:
+                return new AluHandler(paddr, decoded) {
+                    long compute(long src1, long src2) {
+                        return src1 + src2;
+                    }
+                };
+            case Mips.SUB:
+                return new AluHandler(paddr, decoded) {
+                    long compute(long src1, long src2) {
+                        return src1 - src2;
+                    }
+                };
+            case Mips.SLL:
+                return new AluHandler(paddr, decoded) {
+                    long compute(long src1, long src2) {
+                        return src2 << (src1 & 0x1F);
+                    }
+                };
+            case Mips.SRA:
+                return new AluHandler(paddr, decoded) {
+                    long compute(long src1, long src2) {
+                        return src2 >> (src1 & 0x1F);
+                    }
+                };
+            case Mips.SRL:
+                return new AluHandler(paddr, decoded) {
+                    long compute(long src1, long src2) {
+                        return src2 >>> (src1 & 0x1F);
+                    }
+                };
+            case Mips.SLT:
+                return new AluHandler(paddr, decoded) {
+                    long compute(long src1, long src2) {
+                        return (src1 < src2) ? 1 : 0;
+                    }
+                };
+            case Mips.AND:
+                return new AluHandler(paddr, decoded) {
+                    long compute(long src1, long src2) {
+                        return src1 & src2;
+                    }
+                };
+            case Mips.OR:
+                return new AluHandler(paddr, decoded) {
+                    long compute(long src1, long src2) {
+                        return src1 | src2;
+                    }
+                };
+            case Mips.NOR:
+                return new AluHandler(paddr, decoded) {
+                    long compute(long src1, long src2) {
+                        return ~(src1 | src2);
+                    }
+                };
+            case Mips.XOR:
+                return new AluHandler(paddr, decoded) {
+                    long compute(long src1, long src2) {
+                        return src1 ^ src2;
+                    }
+                };
+            case Mips.LUI:
+                return new AluHandler(paddr, decoded) {
+                    long compute(long src1, long src2) {
+                        return imm << 16;
+                    }
+                };
+
+            case Mips.BEQ:
+                return new BranchHandler(paddr, decoded) {
+                    boolean taken(long src1, long src2) {
+                        return src1 == src2;
+                    }
+                };
+            case Mips.BNE:
+                return new BranchHandler(paddr, decoded) {
+                    boolean taken(long src1, long src2) {
+                        return src1 != src2;
+                    }
+                };
+            case Mips.BGEZ:
+                return new BranchHandler(paddr, decoded) {
+                    boolean taken(long src1, long src2) {
+                        return src1 >= 0;
+                    }
+                };
+            case Mips.BGTZ:
+                return new BranchHandler(paddr, decoded) {
+                    boolean taken(long src1, long src2) {
+                        return src1 > 0;
+                    }
+                };
+            case Mips.BLEZ:
+                return new BranchHandler(paddr, decoded) {
+                    boolean taken(long src1, long src2) {
+                        return src1 <= 0;
+                    }
+                };
+            case Mips.BLTZ:
+                return new BranchHandler(paddr, decoded) {
+                    boolean taken(long src1, long src2) {
+                        return src1 < 0;
+                    }
+                };
+
+            case Mips.JUMP:
+                return new JumpHandler(paddr, decoded);
+
+            case Mips.MULT:
+                return new MultHandler(paddr, decoded);
+            case Mips.DIV:
+                return new DivHandler(paddr, decoded);
+            case Mips.MFLO:
+            case Mips.MFHI:
+                return new MoveFromHandler(paddr, decoded);
+            case Mips.MTLO:
+            case Mips.MTHI:
+                return new MoveToHandler(paddr, decoded);
+
+            case Mips.LOAD:
+                return new LoadHandler(paddr, decoded);
+            case Mips.LWL:
+            case Mips.LWR:
+                return new LoadPartialHandler(paddr, decoded);
+            case Mips.STORE:
+                return new StoreHandler(paddr, decoded);
+            case Mips.SWL:
+            case Mips.SWR:
+                return new StorePartialHandler(paddr, decoded);
+
+            case Mips.SYSCALL:
+                return new ExceptionHandler(paddr, decoded,
+                        exceptionSyscall);
+            case Mips.UNIMPL:
+            case Mips.INVALID:
+                return new ExceptionHandler(paddr, decoded,
+                        exceptionIllegalInstruction);
+
+            default:
+                Lib.assertNotReached();
+                return null;
         }
     }
 
@@ -394,56 +1188,488 @@ public final class Processor {
         Lib.assertTrue(usingTLB);
         Lib.assertTrue(number >= 0 && number < tlbSize);
 
-        return new TranslationEntry(translations[number]);
+        int flags = tlbFlags[number];
+        return new TranslationEntry(tlbVpn[number], tlbPpn[number],
+                (flags & tlbValid) != 0, (flags & tlbReadOnly) != 0,
+                (flags & tlbUsed) != 0, (flags & tlbDirty) != 0);
     }
 
     /**
-     * Fill the specified TLB entry.
-     *
-     * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * Return the virtual page number of the specified TLB entry.
      *
      * @param    number    the index into the TLB.
-     * @param    entry    the new contents of the TLB entry.
+     * @return the virtual page number.
      */
-    public void writeTLBEntry(int number, TranslationEntry entry) {
+    public int readTLBVpn(int number) {
         Lib.assertTrue(usingTLB);
         Lib.assertTrue(number >= 0 && number < tlbSize);
 
-        translations[number] = new TranslationEntry(entry);
+        return tlbVpn[number];
     }
 
     /**
-     * Return the number of pages of physical memory attached to this simulated
-     * processor.
+     * Return the physical page number of the specified TLB entry.
      *
-     * @return the number of pages of physical memory.
+     * @param    number    the index into the TLB.
+     * @return the physical page number.
      */
-    public int getNumPhysPages() {
-        return numPhysPages;
+    public int readTLBPpn(int number) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(number >= 0 && number < tlbSize);
+
+        return tlbPpn[number];
     }
 
     /**
-     * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * Return the flags of the specified TLB entry, a combination of
+     * <tt>tlbValid</tt>, <tt>tlbReadOnly</tt>, <tt>tlbUsed</tt> and
+     * <tt>tlbDirty</tt>.
      *
-     * @return the main memory array.
+     * @param    number    the index into the TLB.
+     * @return the flags.
      */
-    public byte[] getMemory() {
-        return mainMemory;
-    }
+    public int readTLBFlags(int number) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(number >= 0 && number < tlbSize);
 
-    private void finishLoad() {
-        delayedLoad(0, 0, 0);
+        return tlbFlags[number];
     }
 
     /**
-     * Translate a virtual address into a physical address, using either a
-     * page table or a TLB. Check for alignment, make sure the virtual page is
-     * valid, make sure a read-only page is not being written, make sure the
-     * resulting physical page is valid, and then return the resulting physical
-     * address.
+     * Fill the specified TLB entry.
+     *
+     * <p>
+     * The TLB is fully associative, so the location of an entry within the TLB
+     * does not affect anything.
+     *
+     * @param    number    the index into the TLB.
+     * @param    entry    the new contents of the TLB entry.
+     */
+    public void writeTLBEntry(int number, TranslationEntry entry) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(number >= 0 && number < tlbSize);
+
+        writeTLBEntry(number, entry.vpn, entry.ppn,
+                (entry.valid ? tlbValid : 0) |
+                        (entry.readOnly ? tlbReadOnly : 0) |
+                        (entry.used ? tlbUsed : 0) |
+                        (entry.dirty ? tlbDirty : 0));
+    }
+
+    /**
+     * Fill the specified TLB entry without allocating a
+     * <tt>TranslationEntry</tt>.
+     *
+     * @param    number    the index into the TLB.
+     * @param    vpn    the virtual page number.
+     * @param    ppn    the physical page number.
+     * @param    flags    a combination of <tt>tlbValid</tt>,
+     * <tt>tlbReadOnly</tt>, <tt>tlbUsed</tt> and <tt>tlbDirty</tt>.
+     */
+    public void writeTLBEntry(int number, int vpn, int ppn, int flags) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(number >= 0 && number < tlbSize);
+
+        // lookups of the old vpn must miss, and so must lookups of the new
+        // one, which may have been cached from a later slot
+        uncacheTLBEntry(tlbVpn[number]);
+        uncacheTLBEntry(vpn);
+
+        tlbVpn[number] = vpn;
+        tlbPpn[number] = ppn;
+        tlbFlags[number] = flags;
+    }
+
+    /**
+     * Replace the flags of the specified TLB entry, for example to clear its
+     * used bit.
+     *
+     * @param    number    the index into the TLB.
+     * @param    flags    the new flags.
+     */
+    public void writeTLBFlags(int number, int flags) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(number >= 0 && number < tlbSize);
+
+        writeTLBEntry(number, tlbVpn[number], tlbPpn[number], flags);
+    }
+
+    /**
+     * Copy the whole TLB into <i>state</i>, <tt>tlbEntryInts</tt> ints per
+     * entry, for example when switching address spaces.
+     *
+     * @param    state    an array of at least
+     * <tt>getTLBSize() * tlbEntryInts</tt> ints.
+     */
+    public void saveTLB(int[] state) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(state.length >= tlbSize * tlbEntryInts);
+
+        for (int i = 0, j = 0; i < tlbSize; i++) {
+            state[j++] = tlbVpn[i];
+            state[j++] = tlbPpn[i];
+            state[j++] = tlbFlags[i];
+        }
+    }
+
+    /**
+     * Load the whole TLB from <i>state</i>, as saved by <tt>saveTLB()</tt>.
+     *
+     * @param    state    an array of at least
+     * <tt>getTLBSize() * tlbEntryInts</tt> ints.
+     */
+    public void restoreTLB(int[] state) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(state.length >= tlbSize * tlbEntryInts);
+
+        for (int i = 0, j = 0; i < tlbSize; i++) {
+            tlbVpn[i] = state[j++];
+            tlbPpn[i] = state[j++];
+            tlbFlags[i] = state[j++];
+        }
+
+        Arrays.fill(tlbCache, -1);
+    }
+
+    /**
+     * Drop the cached TLB lookup for the specified virtual page, if any.
+     *
+     * @param    vpn    the virtual page number.
+     */
+    private void uncacheTLBEntry(int vpn) {
+        int slot = vpn & (tlbCache.length - 1);
+        if (tlbCache[slot] >= 0 && tlbVpn[tlbCache[slot]] == vpn)
+            tlbCache[slot] = -1;
+    }
+
+    /**
+     * Return the number of pages of physical memory attached to this simulated
+     * processor.
+     *
+     * @return the number of pages of physical memory.
+     */
+    public int getNumPhysPages() {
+        return numPhysPages;
+    }
+
+    /**
+     * Return a reference to the physical memory array. The size of this array
+     * is <tt>pageSize * getNumPhysPages()</tt>.
+     *
+     * <p>
+     * Only available when physical memory is kept in a Java array. Prefer the
+     * bulk copies of <tt>getPhysicalMemory()</tt>, which always work.
+     *
+     * @return the main memory array.
+     */
+    public byte[] getMemory() {
+        Lib.assertTrue(memory instanceof ArrayMemory,
+                "physical memory is not a Java array");
+
+        return ((ArrayMemory) memory).array();
+    }
+
+    /**
+     * Return the physical memory, <tt>pageSize * getNumPhysPages()</tt>
+     * bytes of it.
+     *
+     * @return the physical memory.
+     */
+    public PhysicalMemory getPhysicalMemory() {
+        return memory;
+    }
+
+    /**
+     * Discard any decoded instructions cached for the specified physical
+     * page. Call this after overwriting a page from the kernel,
+     * for example when loading a new program into a reused page.
+     *
+     * <p>
+     * Stores made by user programs invalidate the cache on their own, and
+     * every cached or compiled instruction is checked against the word it
+     * was decoded from before it runs, so a missed call costs a redundant
+     * decode rather than a stale instruction.
+     *
+     * @param    ppn    the physical page that was written.
+     */
+    public void invalidatePage(int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+        decodeCache[ppn] = null;
+        codeVersion[ppn]++;
+
+        Block[] page = blockCache[ppn];
+        if (page != null) {
+            for (int i = 0; i < page.length; i++) {
+                if (page[i] != null)
+                    page[i].dropped = true;
+            }
+            blockCache[ppn] = null;
+        }
+    }
+
+    /**
+     * Tell the profiler, if any, that an executable was opened.
+     *
+     * @param    coff    the executable.
+     */
+    void executableOpened(Coff coff) {
+        if (profiler != null)
+            profiler.executableOpened(coff);
+    }
+
+    /**
+     * Tell the profiler, if any, that a page of an executable was loaded
+     * into the specified physical page.
+     *
+     * @param    coff    the executable.
+     * @param    ppn    the physical page.
+     */
+    void coffPageLoaded(Coff coff, int ppn) {
+        if (profiler != null)
+            profiler.pageLoaded(coff, ppn);
+    }
+
+    /**
+     * Take a profiling sample, if profiling and the interrupts being invoked
+     * came due on a user tick. Called on timer interrupts, or on the
+     * profiler's own interrupts with a one-shot timer.
+     */
+    void sampleProfile() {
+        if (profiler != null && Machine.interrupt().inUserTick())
+            profiler.sample();
+    }
+
+    /**
+     * Write the profile, if profiling. Called when the machine halts.
+     */
+    void writeProfile() {
+        if (profiler != null)
+            profiler.write();
+    }
+
+    /**
+     * Close the trace sink, if tracing. Called when the machine halts.
+     */
+    void closeTrace() {
+        if (trace != null)
+            trace.close();
+    }
+
+    /**
+     * Translate a virtual address the way the processor would, but without
+     * raising exceptions or setting any used or dirty bits.
+     *
+     * @param    vaddr    the virtual address.
+     * @return the physical address, or -1 if it is not mapped.
+     */
+    int peekTranslate(int vaddr) {
+        int vpn = pageFromAddress(vaddr);
+        int ppn = -1;
+
+        if (usingTLB) {
+            for (int i = 0; i < tlbSize; i++) {
+                if ((tlbFlags[i] & tlbValid) != 0 && tlbVpn[i] == vpn) {
+                    ppn = tlbPpn[i];
+                    break;
+                }
+            }
+        } else if (translations != null && vpn < translations.length
+                && translations[vpn] != null && translations[vpn].valid) {
+            ppn = translations[vpn].ppn;
+        }
+
+        if (ppn < 0 || ppn >= numPhysPages)
+            return -1;
+
+        return ppn * pageSize + offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Write the registers, any delayed load in progress, the TLB and the
+     * nonzero pages of physical memory to a machine snapshot. Pages that are
+     * all zero are left out, so a snapshot of a mostly empty memory stays
+     * small.
+     *
+     * @param    out    the snapshot being written.
+     */
+    void saveSnapshot(DataOutput out) throws IOException {
+        out.writeInt(numPhysPages);
+        for (int i = 0; i < numUserRegisters; i++)
+            out.writeInt(registers[i]);
+
+        // the next instruction may be in the delay slot of a load, so the
+        // load is saved as it is rather than completed now
+        out.writeInt(loadTarget);
+        out.writeInt(loadValue);
+        out.writeInt(loadMask);
+
+        out.writeInt(usingTLB ? tlbSize : 0);
+        for (int i = 0; usingTLB && i < tlbSize; i++) {
+            out.writeInt(tlbVpn[i]);
+            out.writeInt(tlbPpn[i]);
+            out.writeInt(tlbFlags[i]);
+        }
+
+        byte[] page = new byte[pageSize];
+        for (int ppn = 0; ppn < numPhysPages; ppn++) {
+            memory.read(ppn * pageSize, page, 0, pageSize);
+
+            int i = 0;
+            while (i < pageSize && page[i] == 0)
+                i++;
+            if (i == pageSize)
+                continue;
+
+            out.writeInt(ppn);
+            out.write(page);
+        }
+        out.writeInt(-1);
+    }
+
+    /**
+     * Load the registers, delayed load, TLB and physical memory from a
+     * machine snapshot, as written by <tt>saveSnapshot()</tt>. Pages missing
+     * from the snapshot are zeroed, and every decoded or compiled instruction
+     * is discarded.
+     *
+     * @param    in    the snapshot being read.
+     */
+    void restoreSnapshot(DataInput in) throws IOException {
+        Lib.assertTrue(in.readInt() == numPhysPages,
+                "snapshot has a different amount of physical memory");
+
+        for (int i = 0; i < numUserRegisters; i++)
+            registers[i] = in.readInt();
+
+        loadTarget = in.readInt();
+        loadValue = in.readInt();
+        loadMask = in.readInt();
+        Lib.assertTrue(loadTarget >= 0 && loadTarget < numUserRegisters);
+
+        // the next instruction may be in the delay slot of a branch
+        resumed = true;
+
+        // the pending interrupts have moved, start a new batch
+        untickedInstructions = 0;
+        tickBudget = 0;
+
+        Lib.assertTrue(in.readInt() == (usingTLB ? tlbSize : 0),
+                "snapshot has a different TLB");
+        for (int i = 0; usingTLB && i < tlbSize; i++) {
+            tlbVpn[i] = in.readInt();
+            tlbPpn[i] = in.readInt();
+            tlbFlags[i] = in.readInt();
+        }
+        if (usingTLB)
+            Arrays.fill(tlbCache, -1);
+
+        byte[] page = new byte[pageSize];
+        int next = 0;
+        for (int ppn = in.readInt(); ppn != -1; ppn = in.readInt()) {
+            Lib.assertTrue(ppn >= next && ppn < numPhysPages);
+
+            for (; next < ppn; next++)
+                memory.zero(next * pageSize, pageSize);
+
+            in.readFully(page);
+            memory.write(ppn * pageSize, page, 0, pageSize);
+            next = ppn + 1;
+        }
+        for (; next < numPhysPages; next++)
+            memory.zero(next * pageSize, pageSize);
+
+        for (int ppn = 0; ppn < numPhysPages; ppn++)
+            invalidatePage(ppn);
+    }
+
+    /**
+     * Return the decoded form of the instruction word <i>value</i>, fetched
+     * from physical address <i>paddr</i>, decoding it only if it is not
+     * already in the decode cache.
+     *
+     * @param    paddr    the word-aligned physical address of the instruction.
+     * @param    value    the instruction word at that address.
+     * @return the decoded instruction.
+     */
+    private Decoded decodeAt(int paddr, int value) {
+        int ppn = pageFromAddress(paddr);
+
+        Decoded[] page = decodeCache[ppn];
+        if (page == null) {
+            page = new Decoded[pageSize / 4];
+            decodeCache[ppn] = page;
+        }
+
+        int index = offsetFromAddress(paddr) / 4;
+
+        Decoded decoded = page[index];
+        if (decoded == null || decoded.value != value) {
+            decoded = new Decoded(value);
+            page[index] = decoded;
+        }
+
+        return decoded;
+    }
+
+    /**
+     * Drop the cached decode of the word containing physical address
+     * <i>paddr</i>, which is about to be written.
+     *
+     * @param    paddr    the physical address being written.
+     * @return <tt>true</tt> if the page holds decoded instructions.
+     */
+    private boolean invalidateDecoded(int paddr) {
+        int ppn = pageFromAddress(paddr);
+
+        Decoded[] page = decodeCache[ppn];
+        if (page == null)
+            return false;
+
+        page[offsetFromAddress(paddr) / 4] = null;
+        codeVersion[ppn]++;
+        return true;
+    }
+
+    /**
+     * Return the exception for <i>cause</i>, ready to throw.
+     *
+     * @param    cause    the cause of the exception.
+     * @return the exception.
+     */
+    private MipsException mipsException(int cause) {
+        Lib.assertTrue(cause >= 0 && cause < exceptions.length);
+
+        MipsException e = exceptions[cause];
+        e.hasBadVAddr = false;
+        return e;
+    }
+
+    /**
+     * Return the exception for <i>cause</i>, with a bad virtual address,
+     * ready to throw.
+     *
+     * @param    cause    the cause of the exception.
+     * @param    badVAddr    the virtual address that caused it.
+     * @return the exception.
+     */
+    private MipsException mipsException(int cause, int badVAddr) {
+        MipsException e = mipsException(cause);
+        e.hasBadVAddr = true;
+        e.badVAddr = badVAddr;
+        return e;
+    }
+
+    private void finishLoad() {
+        delayedLoad(0, 0, 0);
+    }
+
+    /**
+     * Translate a virtual address into a physical address, using either a
+     * page table or a TLB. Check for alignment, make sure the virtual page is
+     * valid, make sure a read-only page is not being written, make sure the
+     * resulting physical page is valid, and then return the resulting physical
+     * address.
      *
      * @param    vaddr    the virtual address to translate.
      * @param    size    the size of the memory reference (must be 1, 2, or 4).
@@ -460,7 +1686,7 @@ public final class Processor {
         // check alignment
         if ((vaddr & (size - 1)) != 0) {
             Lib.debug(dbgProcessor, "\t\talignment error");
-            throw new MipsException(exceptionAddressError, vaddr);
+            throw mipsException(exceptionAddressError, vaddr);
         }
 
         // calculate virtual page number and offset from the virtual address
@@ -468,6 +1694,9 @@ public final class Processor {
         int offset = offsetFromAddress(vaddr);
 
         TranslationEntry entry = null;
+        int index = -1;
+        boolean readOnly;
+        int ppn;
 
         // if not using a TLB, then the vpn is an index into the table
         if (!usingTLB) {
@@ -476,43 +1705,60 @@ public final class Processor {
                     !translations[vpn].valid) {
                 privilege.stats.numPageFaults++;
                 Lib.debug(dbgProcessor, "\t\tpage fault");
-                throw new MipsException(exceptionPageFault, vaddr);
+                throw mipsException(exceptionPageFault, vaddr);
             }
 
             entry = translations[vpn];
+            readOnly = entry.readOnly;
+            ppn = entry.ppn;
         }
-        // else, look through all TLB entries for matching vpn
+        // else, look through all TLB entries for matching vpn, unless the
+        // last lookup of this vpn is still cached
         else {
-            for (int i = 0; i < tlbSize; i++) {
-                if (translations[i].valid && translations[i].vpn == vpn) {
-                    entry = translations[i];
-                    break;
+            int slot = vpn & (tlbCache.length - 1);
+            index = tlbCache[slot];
+
+            if (index < 0 || tlbVpn[index] != vpn) {
+                index = -1;
+                for (int i = 0; i < tlbSize; i++) {
+                    if ((tlbFlags[i] & tlbValid) != 0 && tlbVpn[i] == vpn) {
+                        index = i;
+                        break;
+                    }
                 }
+                if (index < 0) {
+                    privilege.stats.numTLBMisses++;
+                    Lib.debug(dbgProcessor, "\t\tTLB miss");
+                    throw mipsException(exceptionTLBMiss, vaddr);
+                }
+
+                tlbCache[slot] = index;
             }
-            if (entry == null) {
-                privilege.stats.numTLBMisses++;
-                Lib.debug(dbgProcessor, "\t\tTLB miss");
-                throw new MipsException(exceptionTLBMiss, vaddr);
-            }
+
+            readOnly = (tlbFlags[index] & tlbReadOnly) != 0;
+            ppn = tlbPpn[index];
         }
 
         // check if trying to write a read-only page
-        if (entry.readOnly && writing) {
+        if (readOnly && writing) {
             Lib.debug(dbgProcessor, "\t\tread-only exception");
-            throw new MipsException(exceptionReadOnly, vaddr);
+            throw mipsException(exceptionReadOnly, vaddr);
         }
 
         // check if physical page number is out of range
-        int ppn = entry.ppn;
         if (ppn < 0 || ppn >= numPhysPages) {
             Lib.debug(dbgProcessor, "\t\tbad ppn");
-            throw new MipsException(exceptionBusError, vaddr);
+            throw mipsException(exceptionBusError, vaddr);
         }
 
         // set used and dirty bits as appropriate
-        entry.used = true;
-        if (writing)
-            entry.dirty = true;
+        if (entry != null) {
+            entry.used = true;
+            if (writing)
+                entry.dirty = true;
+        } else {
+            tlbFlags[index] |= writing ? (tlbUsed | tlbDirty) : tlbUsed;
+        }
 
         int paddr = (ppn * pageSize) + offset;
 
@@ -537,8 +1783,11 @@ public final class Processor {
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-                size);
+        int value = memory.read(translate(vaddr, size, false), size);
+
+        if (trace != null)
+            trace.record(TraceSink.recordRead, size, traceTick(),
+                    registers[regPC], tracedInstruction, vaddr, value);
 
         if (Lib.test(dbgProcessor))
             System.out.println("\t\tvalue read=0x" +
@@ -554,9 +1803,10 @@ public final class Processor {
      * @param    vaddr    the virtual address to write to.
      * @param    size    the number of bytes to write (1, 2, or 4).
      * @param    value    the value to store.
+     * @return <tt>true</tt> if the write hit a page holding instructions.
      * @exception MipsException    if a translation error occurred.
      */
-    private void writeMem(int vaddr, int size, int value)
+    private boolean writeMem(int vaddr, int size, int value)
             throws MipsException {
         if (Lib.test(dbgProcessor))
             System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
@@ -565,8 +1815,17 @@ public final class Processor {
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-                value);
+        int paddr = translate(vaddr, size, true);
+
+        boolean code = invalidateDecoded(paddr);
+
+        memory.write(paddr, size, value);
+
+        if (trace != null)
+            trace.record(TraceSink.recordWrite, size, traceTick(),
+                    registers[regPC], tracedInstruction, vaddr, value);
+
+        return code;
     }
 
     /**
@@ -622,7 +1881,52 @@ public final class Processor {
         registers[regNextPC] = nextPC;
     }
 
-    private static class Mips {
+    // The methods below are called by the code BlockCompiler generates.
+
+    int jitRead(int vaddr, int size) throws MipsException {
+        return readMem(vaddr, size);
+    }
+
+    boolean jitWrite(int vaddr, int size, int value) throws MipsException {
+        return writeMem(vaddr, size, value);
+    }
+
+    void jitDelayedLoad(int target, int value, int mask) {
+        delayedLoad(target, value, mask);
+    }
+
+    void jitFinishLoad() {
+        finishLoad();
+    }
+
+    void jitOverflow() throws MipsException {
+        throw mipsException(exceptionOverflow);
+    }
+
+    /**
+     * The same as <tt>DivHandler.execute()</tt>, without the delayed load
+     * and the PC.
+     */
+    void jitDivide(int rs, int rt, boolean unsigned) throws MipsException {
+        long src1 = registers[rs];
+        long src2 = registers[rt];
+
+        if (unsigned) {
+            src1 &= 0xFFFFFFFFL;
+            src2 &= 0xFFFFFFFFL;
+        }
+
+        try {
+            registers[regLo] = (int) (src1 / src2);
+            registers[regHi] = (int) (src1 % src2);
+            if (registers[regLo] * src2 + registers[regHi] != src1)
+                throw new ArithmeticException();
+        } catch (ArithmeticException e) {
+            throw mipsException(exceptionOverflow);
+        }
+    }
+
+    static class Mips {
         // operation types
         static final int
                 INVALID = 0,
@@ -871,34 +2175,706 @@ public final class Processor {
         }
     }
 
-    private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
-        public void flushPipe() {
-            finishLoad();
-        }
-    }
-
-    private class MipsException extends Exception {
-        private boolean hasBadVAddr = false;
-        private int cause, badVAddr;
-
-        public MipsException(int cause) {
-            Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
-
-            this.cause = cause;
-        }
-
-        public MipsException(int cause, int badVAddr) {
-            this(cause);
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * worked out once and kept in the decode cache.
+     */
+    static class Decoded {
+        final int value, op, rs, rt, rd, sh, func, target, imm;
+        final int operation, format, flags;
+        final String name;
+        final int size, dstReg;
+        /**
+         * The sign-extended immediate shifted into a branch offset. Kept
+         * separately because <tt>imm</tt> is zero-extended for unsigned
+         * instructions.
+         */
+        final int branchOffset;
+
+        Decoded(int value) {
+            this.value = value;
 
-            hasBadVAddr = true;
-            this.badVAddr = badVAddr;
-        }
+            op = Lib.extract(value, 26, 6);
+            rs = Lib.extract(value, 21, 5);
+            rt = Lib.extract(value, 16, 5);
+            rd = Lib.extract(value, 11, 5);
+            sh = Lib.extract(value, 6, 5);
+            func = Lib.extract(value, 0, 6);
+            target = Lib.extract(value, 0, 26);
 
-        public void handle() {
-            writeRegister(regCause, cause);
+            int signedImm = Lib.extend(value, 0, 16);
+            branchOffset = signedImm << 2;
 
-            if (hasBadVAddr)
-                writeRegister(regBadVAddr, badVAddr);
+            Mips info;
+            switch (op) {
+                case 0:
+                    info = Mips.specialtable[func];
+                    break;
+                case 1:
+                    info = Mips.regimmtable[rt];
+                    break;
+                default:
+                    info = Mips.optable[op];
+                    break;
+            }
+
+            operation = info.operation;
+            name = info.name;
+            format = info.format;
+            flags = info.flags;
+
+            // get memory access size
+            if (Lib.test(Mips.SIZEB, flags))
+                size = 1;
+            else if (Lib.test(Mips.SIZEH, flags))
+                size = 2;
+            else if (Lib.test(Mips.SIZEW, flags))
+                size = 4;
+            else
+                size = 0;
+
+            // get dstReg
+            if (Lib.test(Mips.DSTRA, flags))
+                dstReg = regRA;
+            else if (format == Mips.IFMT)
+                dstReg = rt;
+            else if (format == Mips.RFMT)
+                dstReg = rd;
+            else
+                dstReg = -1;
+
+            // get imm
+            if (Lib.test(Mips.UNSIGNED, flags))
+                imm = signedImm & 0xFFFF;
+            else
+                imm = signedImm;
+        }
+    }
+
+    /**
+     * Append the disassembly of an instruction, as printed by the
+     * <tt>m</tt> and <tt>M</tt> debug flags, padded to the column where the
+     * result goes. An invalid instruction is shown by its fields, followed by
+     * a newline.
+     *
+     * @param    out    where to append the disassembly.
+     * @param    d    the decoded instruction.
+     * @param    nextPC    the address of the next instruction. Branch and
+     * jump targets are relative to it.
+     * @param    registers    the registers before the instruction runs, to
+     * show the values of its sources as the <tt>M</tt> flag does, or
+     * <tt>null</tt> to leave them out.
+     * @return <tt>false</tt> if the instruction is invalid.
+     */
+    static boolean disassemble(StringBuilder out, Decoded d, int nextPC,
+                               int[] registers) {
+        if (d.operation == Mips.INVALID) {
+            out.append("invalid: op=" + Lib.toHexString(d.op, 2) +
+                    " rs=" + Lib.toHexString(d.rs, 2) +
+                    " rt=" + Lib.toHexString(d.rt, 2) +
+                    " rd=" + Lib.toHexString(d.rd, 2) +
+                    " sh=" + Lib.toHexString(d.sh, 2) +
+                    " func=" + Lib.toHexString(d.func, 2) +
+                    "\n");
+            return false;
+        }
+
+        int spaceIndex = d.name.indexOf(' ');
+        Lib.assertTrue(spaceIndex != -1 &&
+                spaceIndex == d.name.lastIndexOf(' '));
+
+        String instname = d.name.substring(0, spaceIndex);
+        char[] args = d.name.substring(spaceIndex + 1).toCharArray();
+
+        out.append(instname + "\t");
+
+        int minCharsPrinted = 0, maxCharsPrinted = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case Mips.RS:
+                    out.append("$" + d.rs);
+                    minCharsPrinted += 2;
+                    maxCharsPrinted += 3;
+
+                    if (registers != null) {
+                        out.append("#0x" + Lib.toHexString(registers[d.rs]));
+                        minCharsPrinted += 11;
+                        maxCharsPrinted += 11;
+                    }
+                    break;
+                case Mips.RT:
+                    out.append("$" + d.rt);
+                    minCharsPrinted += 2;
+                    maxCharsPrinted += 3;
+
+                    if (registers != null &&
+                            (i != 0 || !Lib.test(Mips.DST, d.flags)) &&
+                            !Lib.test(Mips.DELAYEDLOAD, d.flags)) {
+                        out.append("#0x" + Lib.toHexString(registers[d.rt]));
+                        minCharsPrinted += 11;
+                        maxCharsPrinted += 11;
+                    }
+                    break;
+                case Mips.RETURNADDRESS:
+                    if (d.rd == 31)
+                        continue;
+                case Mips.RD:
+                    out.append("$" + d.rd);
+                    minCharsPrinted += 2;
+                    maxCharsPrinted += 3;
+                    break;
+                case Mips.IMM:
+                    out.append(d.imm);
+                    minCharsPrinted += 1;
+                    maxCharsPrinted += 6;
+                    break;
+                case Mips.SHIFTAMOUNT:
+                    out.append(d.sh);
+                    minCharsPrinted += 1;
+                    maxCharsPrinted += 2;
+                    break;
+                case Mips.ADDR:
+                    out.append(d.imm + "($" + d.rs);
+                    minCharsPrinted += 4;
+                    maxCharsPrinted += 5;
+
+                    if (registers != null) {
+                        out.append("#0x" + Lib.toHexString(registers[d.rs]));
+                        minCharsPrinted += 11;
+                        maxCharsPrinted += 11;
+                    }
+
+                    out.append(")");
+                    break;
+                case Mips.TARGET:
+                    // only branches and j/jal have targets
+                    int jtarget;
+                    if (d.format == Mips.IFMT)
+                        jtarget = nextPC + d.branchOffset;
+                    else
+                        jtarget = (nextPC & 0xF0000000) | (d.target << 2);
+
+                    out.append("0x" + Lib.toHexString(jtarget));
+                    minCharsPrinted += 10;
+                    maxCharsPrinted += 10;
+                    break;
+                default:
+                    Lib.assertTrue(false);
+            }
+            if (i + 1 < args.length) {
+                out.append(", ");
+                minCharsPrinted += 2;
+                maxCharsPrinted += 2;
+            } else {
+                // most separation possible is tsi, 5+1+1=7,
+                // thankfully less than 8 (makes this possible)
+                Lib.assertTrue(maxCharsPrinted - minCharsPrinted < 8);
+                // longest string is stj, which is 40-42 chars w/ -d M;
+                // go for 48
+                while ((minCharsPrinted % 8) != 0) {
+                    out.append(" ");
+                    minCharsPrinted++;
+                    maxCharsPrinted++;
+                }
+                while (minCharsPrinted < 48) {
+                    out.append("\t");
+                    minCharsPrinted += 8;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * A straight-line run of instructions within one physical page, ending
+     * after the delay slot of a branch or jump. Blocks remember the last two
+     * blocks that followed them, so a loop runs without consulting the block
+     * cache.
+     */
+    private class Block {
+        final int paddr;
+        final Handler first;
+        Block successor, otherSuccessor;
+        /**
+         * Set once the code under this block has changed, or its page has
+         * been invalidated.
+         */
+        boolean dropped = false;
+        /**
+         * The number of instructions in the block.
+         */
+        final int length;
+        /**
+         * JIT state: how often the block has run through its handlers, its
+         * compiled form and the PC and code version it was compiled for.
+         */
+        int executions = 0;
+        boolean uncompilable = false;
+        CompiledBlock compiled = null;
+        int compiledPC, compiledVersion;
+
+        Block(int paddr) {
+            this.paddr = paddr;
+
+            int words = (pageSize - offsetFromAddress(paddr)) / 4;
+
+            Handler head = null, tail = null;
+            boolean inDelaySlot = false;
+            int count = 0;
+
+            for (int i = 0; i < maxBlockLength && i < words; i++) {
+                int address = paddr + i * 4;
+                Decoded decoded =
+                        decodeAt(address, memory.readWord(address));
+                Handler handler = newHandler(address, decoded);
+
+                if (head == null)
+                    head = handler;
+                else
+                    tail.next = handler;
+                tail = handler;
+                count++;
+
+                if (inDelaySlot)
+                    break;
+
+                if (Lib.test(Mips.BRANCH, decoded.flags))
+                    inDelaySlot = true;
+                else if (decoded.operation == Mips.SYSCALL ||
+                        decoded.operation == Mips.UNIMPL ||
+                        decoded.operation == Mips.INVALID)
+                    break;
+            }
+
+            first = head;
+            length = count;
+        }
+    }
+
+    /**
+     * A block compiled to JVM bytecode by <tt>BlockCompiler</tt>.
+     */
+    static abstract class CompiledBlock {
+        /**
+         * Run the block.
+         *
+         * @param    processor    the processor to run on.
+         * @param    registers    its registers.
+         * @return the number of instructions completed.
+         * @exception MipsException    if an instruction raised an exception.
+         * The PC is that instruction's, and the ones before it completed.
+         */
+        abstract int run(Processor processor, int[] registers)
+                throws MipsException;
+    }
+
+    /**
+     * One instruction of a block, with everything that does not depend on
+     * register contents bound at construction. <tt>execute()</tt> has the same
+     * effect as a full pass through <tt>Instruction.run()</tt>: it reads its
+     * sources, completes the previous delayed load, writes its result and
+     * advances the PC.
+     */
+    private abstract class Handler {
+        final int paddr, value;
+        final int rs, rt, sh, imm, dstReg;
+        final Decoded decoded;
+        Handler next = null;
+
+        Handler(int paddr, Decoded decoded) {
+            this.paddr = paddr;
+            this.value = decoded.value;
+            this.decoded = decoded;
+
+            rs = decoded.rs;
+            rt = decoded.rt;
+            sh = decoded.sh;
+            imm = decoded.imm;
+            dstReg = decoded.dstReg;
+        }
+
+        abstract void execute() throws MipsException;
+    }
+
+    /**
+     * An arithmetic, logical, shift or set instruction.
+     */
+    private abstract class AluHandler extends Handler {
+        final boolean src1Shift, src2Imm, unsigned, overflow;
+
+        AluHandler(int paddr, Decoded decoded) {
+            super(paddr, decoded);
+
+            src1Shift = Lib.test(Mips.SRC1SH, decoded.flags);
+            src2Imm = Lib.test(Mips.SRC2IMM, decoded.flags);
+            unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+            overflow = Lib.test(Mips.OVERFLOW, decoded.flags);
+        }
+
+        void execute() throws MipsException {
+            long src1 = src1Shift ? sh : registers[rs];
+            long src2 = src2Imm ? imm : registers[rt];
+
+            if (unsigned) {
+                src1 &= 0xFFFFFFFFL;
+                src2 &= 0xFFFFFFFFL;
+            }
+
+            long dst = compute(src1, src2);
+
+            // same test as Instruction.writeBack()
+            if (overflow && Lib.test(dst, 31) != Lib.test(dst, 32))
+                throw mipsException(exceptionOverflow);
+
+            finishLoad();
+
+            if (dstReg != 0)
+                registers[dstReg] = (int) dst;
+
+            advancePC();
+        }
+
+        abstract long compute(long src1, long src2);
+    }
+
+    /**
+     * A conditional branch, optionally linking the return address.
+     */
+    private abstract class BranchHandler extends Handler {
+        final int branchOffset;
+        final boolean link;
+
+        BranchHandler(int paddr, Decoded decoded) {
+            super(paddr, decoded);
+
+            branchOffset = decoded.branchOffset;
+            link = Lib.test(Mips.LINK, decoded.flags);
+        }
+
+        void execute() {
+            int nextPC = registers[regNextPC] + 4;
+            int jtarget = registers[regNextPC] + branchOffset;
+            boolean branch = taken(registers[rs], registers[rt]);
+
+            finishLoad();
+
+            if (link && dstReg != 0)
+                registers[dstReg] = nextPC;
+
+            advancePC(branch ? jtarget : nextPC);
+        }
+
+        abstract boolean taken(long src1, long src2);
+    }
+
+    /**
+     * An unconditional jump to a register or to a target within the current
+     * 256MB region, optionally linking the return address.
+     */
+    private class JumpHandler extends Handler {
+        final boolean register, link;
+        final int target;
+
+        JumpHandler(int paddr, Decoded decoded) {
+            super(paddr, decoded);
+
+            register = (decoded.format == Mips.RFMT);
+            link = Lib.test(Mips.LINK, decoded.flags);
+            target = decoded.target << 2;
+        }
+
+        void execute() {
+            int nextPC = registers[regNextPC] + 4;
+            int jtarget = register ? registers[rs] :
+                    (registers[regNextPC] & 0xF0000000) | target;
+
+            finishLoad();
+
+            if (link && dstReg != 0)
+                registers[dstReg] = nextPC;
+
+            advancePC(jtarget);
+        }
+    }
+
+    private class MultHandler extends Handler {
+        final boolean unsigned;
+
+        MultHandler(int paddr, Decoded decoded) {
+            super(paddr, decoded);
+
+            unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+        }
+
+        void execute() {
+            long src1 = registers[rs];
+            long src2 = registers[rt];
+
+            if (unsigned) {
+                src1 &= 0xFFFFFFFFL;
+                src2 &= 0xFFFFFFFFL;
+            }
+
+            long dst = src1 * src2;
+            registers[regLo] = (int) Lib.extract(dst, 0, 32);
+            registers[regHi] = (int) Lib.extract(dst, 32, 32);
+
+            finishLoad();
+            advancePC();
+        }
+    }
+
+    private class DivHandler extends Handler {
+        final boolean unsigned;
+
+        DivHandler(int paddr, Decoded decoded) {
+            super(paddr, decoded);
+
+            unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+        }
+
+        void execute() throws MipsException {
+            long src1 = registers[rs];
+            long src2 = registers[rt];
+
+            if (unsigned) {
+                src1 &= 0xFFFFFFFFL;
+                src2 &= 0xFFFFFFFFL;
+            }
+
+            try {
+                registers[regLo] = (int) (src1 / src2);
+                registers[regHi] = (int) (src1 % src2);
+                if (registers[regLo] * src2 + registers[regHi] != src1)
+                    throw new ArithmeticException();
+            } catch (ArithmeticException e) {
+                throw mipsException(exceptionOverflow);
+            }
+
+            finishLoad();
+            advancePC();
+        }
+    }
+
+    /**
+     * <tt>mflo</tt> or <tt>mfhi</tt>.
+     */
+    private class MoveFromHandler extends Handler {
+        final int source;
+
+        MoveFromHandler(int paddr, Decoded decoded) {
+            super(paddr, decoded);
+
+            source = (decoded.operation == Mips.MFLO) ? regLo : regHi;
+        }
+
+        void execute() {
+            int dst = registers[source];
+
+            finishLoad();
+
+            if (dstReg != 0)
+                registers[dstReg] = dst;
+
+            advancePC();
+        }
+    }
+
+    /**
+     * <tt>mtlo</tt> or <tt>mthi</tt>.
+     */
+    private class MoveToHandler extends Handler {
+        final int destination;
+
+        MoveToHandler(int paddr, Decoded decoded) {
+            super(paddr, decoded);
+
+            destination = (decoded.operation == Mips.MTLO) ? regLo : regHi;
+        }
+
+        void execute() {
+            registers[destination] = registers[rs];
+
+            finishLoad();
+            advancePC();
+        }
+    }
+
+    /**
+     * <tt>lb</tt>, <tt>lbu</tt>, <tt>lh</tt>, <tt>lhu</tt> or <tt>lw</tt>.
+     */
+    private class LoadHandler extends Handler {
+        final int size;
+        final boolean unsigned;
+
+        LoadHandler(int paddr, Decoded decoded) {
+            super(paddr, decoded);
+
+            size = decoded.size;
+            unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+        }
+
+        void execute() throws MipsException {
+            int value = readMem(registers[rs] + imm, size);
+
+            int dst;
+            if (!unsigned)
+                dst = Lib.extend(value, 0, size * 8);
+            else
+                dst = value;
+
+            delayedLoad(dstReg, dst, 0xFFFFFFFF);
+            advancePC();
+        }
+    }
+
+    /**
+     * <tt>lwl</tt> or <tt>lwr</tt>.
+     */
+    private class LoadPartialHandler extends Handler {
+        final boolean left;
+
+        LoadPartialHandler(int paddr, Decoded decoded) {
+            super(paddr, decoded);
+
+            left = (decoded.operation == Mips.LWL);
+        }
+
+        void execute() throws MipsException {
+            int addr = registers[rs] + imm;
+            int value = readMem(addr & ~0x3, 4);
+
+            int preserved, mask, dst;
+            if (left) {
+                preserved = (3 - (addr & 0x3)) * 8;
+                mask = -1 << preserved;
+                dst = value << preserved;
+            } else {
+                preserved = (addr & 0x3) * 8;
+                mask = -1 >>> preserved;
+                dst = value >>> preserved;
+            }
+
+            delayedLoad(dstReg, dst, mask);
+            advancePC();
+        }
+    }
+
+    /**
+     * <tt>sb</tt>, <tt>sh</tt> or <tt>sw</tt>.
+     */
+    private class StoreHandler extends Handler {
+        final int size;
+
+        StoreHandler(int paddr, Decoded decoded) {
+            super(paddr, decoded);
+
+            size = decoded.size;
+        }
+
+        void execute() throws MipsException {
+            writeMem(registers[rs] + imm, size, registers[rt]);
+
+            finishLoad();
+            advancePC();
+        }
+    }
+
+    /**
+     * <tt>swl</tt> or <tt>swr</tt>.
+     */
+    private class StorePartialHandler extends Handler {
+        final boolean left;
+
+        StorePartialHandler(int paddr, Decoded decoded) {
+            super(paddr, decoded);
+
+            left = (decoded.operation == Mips.SWL);
+        }
+
+        void execute() throws MipsException {
+            int addr = registers[rs] + imm;
+            long src2 = registers[rt];
+            int value = readMem(addr & ~0x3, 4);
+
+            int preserved, mask;
+            long dst;
+            if (left) {
+                preserved = (3 - (addr & 0x3)) * 8;
+                mask = -1 >>> preserved;
+                dst = src2 >>> preserved;
+            } else {
+                preserved = (addr & 0x3) * 8;
+                mask = -1 << preserved;
+                dst = src2 << preserved;
+            }
+
+            // merge values
+            dst = (dst & mask) | (value & ~mask);
+
+            writeMem(addr & ~0x3, 4, (int) dst);
+
+            finishLoad();
+            advancePC();
+        }
+    }
+
+    /**
+     * <tt>syscall</tt>, or an instruction the processor does not implement.
+     */
+    private class ExceptionHandler extends Handler {
+        final int cause;
+        final boolean unimplemented;
+
+        ExceptionHandler(int paddr, Decoded decoded, int cause) {
+            super(paddr, decoded);
+
+            this.cause = cause;
+            unimplemented = (decoded.operation == Mips.UNIMPL);
+        }
+
+        void execute() throws MipsException {
+            if (unimplemented)
+                System.err.println("Warning: encountered unimplemented inst");
+
+            throw mipsException(cause);
+        }
+    }
+
+    private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
+        public void flushPipe() {
+            finishLoad();
+        }
+    }
+
+    /**
+     * A user exception. Instances are reused, so <tt>handle()</tt> reads the
+     * cause and bad address before anything that could let another user
+     * thread run; see <tt>mipsException()</tt>.
+     */
+    private class MipsException extends Exception {
+        private boolean hasBadVAddr = false;
+        private int cause, badVAddr;
+
+        private MipsException(int cause) {
+            // never leaves the processor, so no stack trace
+            super(null, null, false, false);
+
+            this.cause = cause;
+        }
+
+        public void handle() {
+            writeRegister(regCause, cause);
+
+            if (hasBadVAddr)
+                writeRegister(regBadVAddr, badVAddr);
+
+            if (trace != null)
+                trace.record(TraceSink.recordException, 0, traceTick(),
+                        registers[regPC], tracedInstruction,
+                        hasBadVAddr ? badVAddr : 0, cause);
 
             if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
                 System.out.println("exception: " + exceptionNames[cause]);
@@ -917,7 +2893,7 @@ public final class Processor {
 
     private class Instruction {
         // state used to execute a single instruction
-        int value, op, rs, rt, rd, sh, func, target, imm;
+        int value, paddr, op, rs, rt, rd, sh, func, target, imm;
         int operation, format, flags;
         String name;
         int size;
@@ -925,6 +2901,7 @@ public final class Processor {
         long src1, src2, dst;
         int mask;
         boolean branch;
+        Decoded decoded;
 
         public void run() throws MipsException {
             // hopefully this looks familiar to 152 students?
@@ -944,78 +2921,64 @@ public final class Processor {
                 System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
                         + "\t");
 
-            value = readMem(registers[regPC], 4);
+            if (Lib.test(dbgProcessor))
+                System.out.println("\treadMem vaddr=0x"
+                        + Lib.toHexString(registers[regPC]) + ", size=4");
+
+            tracedInstruction = 0;
+
+            // translate separately from the read, so that we know which
+            // physical word the decode cache should be consulted for
+            paddr = translate(registers[regPC], 4, false);
+            value = memory.readWord(paddr);
+
+            if (trace != null) {
+                tracedInstruction = value;
+                trace.record(TraceSink.recordFetch, 4, traceTick(),
+                        registers[regPC], value, registers[regPC], value);
+            }
+
+            if (Lib.test(dbgProcessor))
+                System.out.println("\t\tvalue read=0x" +
+                        Lib.toHexString(value, 8));
         }
 
         private void decode() {
-            op = Lib.extract(value, 26, 6);
-            rs = Lib.extract(value, 21, 5);
-            rt = Lib.extract(value, 16, 5);
-            rd = Lib.extract(value, 11, 5);
-            sh = Lib.extract(value, 6, 5);
-            func = Lib.extract(value, 0, 6);
-            target = Lib.extract(value, 0, 26);
-            imm = Lib.extend(value, 0, 16);
+            decoded = decodeAt(paddr, value);
 
-            Mips info;
-            switch (op) {
-                case 0:
-                    info = Mips.specialtable[func];
-                    break;
-                case 1:
-                    info = Mips.regimmtable[rt];
-                    break;
-                default:
-                    info = Mips.optable[op];
-                    break;
-            }
+            op = decoded.op;
+            rs = decoded.rs;
+            rt = decoded.rt;
+            rd = decoded.rd;
+            sh = decoded.sh;
+            func = decoded.func;
+            target = decoded.target;
+            imm = decoded.imm;
 
-            operation = info.operation;
-            name = info.name;
-            format = info.format;
-            flags = info.flags;
+            operation = decoded.operation;
+            name = decoded.name;
+            format = decoded.format;
+            flags = decoded.flags;
+
+            size = decoded.size;
+            dstReg = decoded.dstReg;
 
             mask = 0xFFFFFFFF;
             branch = true;
 
-            // get memory access size
-            if (test(Mips.SIZEB))
-                size = 1;
-            else if (test(Mips.SIZEH))
-                size = 2;
-            else if (test(Mips.SIZEW))
-                size = 4;
-            else
-                size = 0;
-
             // get nextPC
             nextPC = registers[regNextPC] + 4;
 
-            // get dstReg
-            if (test(Mips.DSTRA))
-                dstReg = regRA;
-            else if (format == Mips.IFMT)
-                dstReg = rt;
-            else if (format == Mips.RFMT)
-                dstReg = rd;
-            else
-                dstReg = -1;
-
             // get jtarget
             if (format == Mips.RFMT)
                 jtarget = registers[rs];
             else if (format == Mips.IFMT)
-                jtarget = registers[regNextPC] + (imm << 2);
+                jtarget = registers[regNextPC] + decoded.branchOffset;
             else if (format == Mips.JFMT)
                 jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
             else
                 jtarget = -1;
 
-            // get imm
-            if (test(Mips.UNSIGNED)) {
-                imm &= 0xFFFF;
-            }
-
             // get addr
             addr = registers[rs] + imm;
 
@@ -1046,118 +3009,12 @@ public final class Processor {
                 System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
                         + "\t");
 
-            if (operation == Mips.INVALID) {
-                System.out.print("invalid: op=" + Lib.toHexString(op, 2) +
-                        " rs=" + Lib.toHexString(rs, 2) +
-                        " rt=" + Lib.toHexString(rt, 2) +
-                        " rd=" + Lib.toHexString(rd, 2) +
-                        " sh=" + Lib.toHexString(sh, 2) +
-                        " func=" + Lib.toHexString(func, 2) +
-                        "\n");
-                return;
-            }
+            StringBuilder line = new StringBuilder();
+            boolean valid = disassemble(line, decoded, registers[regNextPC],
+                    Lib.test(dbgFullDisassemble) ? registers : null);
+            System.out.print(line);
 
-            int spaceIndex = name.indexOf(' ');
-            Lib.assertTrue(spaceIndex != -1 && spaceIndex == name.lastIndexOf(' '));
-
-            String instname = name.substring(0, spaceIndex);
-            char[] args = name.substring(spaceIndex + 1).toCharArray();
-
-            System.out.print(instname + "\t");
-
-            int minCharsPrinted = 0, maxCharsPrinted = 0;
-
-            for (int i = 0; i < args.length; i++) {
-                switch (args[i]) {
-                    case Mips.RS:
-                        System.out.print("$" + rs);
-                        minCharsPrinted += 2;
-                        maxCharsPrinted += 3;
-
-                        if (Lib.test(dbgFullDisassemble)) {
-                            System.out.print("#0x" +
-                                    Lib.toHexString(registers[rs]));
-                            minCharsPrinted += 11;
-                            maxCharsPrinted += 11;
-                        }
-                        break;
-                    case Mips.RT:
-                        System.out.print("$" + rt);
-                        minCharsPrinted += 2;
-                        maxCharsPrinted += 3;
-
-                        if (Lib.test(dbgFullDisassemble) &&
-                                (i != 0 || !test(Mips.DST)) &&
-                                !test(Mips.DELAYEDLOAD)) {
-                            System.out.print("#0x" +
-                                    Lib.toHexString(registers[rt]));
-                            minCharsPrinted += 11;
-                            maxCharsPrinted += 11;
-                        }
-                        break;
-                    case Mips.RETURNADDRESS:
-                        if (rd == 31)
-                            continue;
-                    case Mips.RD:
-                        System.out.print("$" + rd);
-                        minCharsPrinted += 2;
-                        maxCharsPrinted += 3;
-                        break;
-                    case Mips.IMM:
-                        System.out.print(imm);
-                        minCharsPrinted += 1;
-                        maxCharsPrinted += 6;
-                        break;
-                    case Mips.SHIFTAMOUNT:
-                        System.out.print(sh);
-                        minCharsPrinted += 1;
-                        maxCharsPrinted += 2;
-                        break;
-                    case Mips.ADDR:
-                        System.out.print(imm + "($" + rs);
-                        minCharsPrinted += 4;
-                        maxCharsPrinted += 5;
-
-                        if (Lib.test(dbgFullDisassemble)) {
-                            System.out.print("#0x" +
-                                    Lib.toHexString(registers[rs]));
-                            minCharsPrinted += 11;
-                            maxCharsPrinted += 11;
-                        }
-
-                        System.out.print(")");
-                        break;
-                    case Mips.TARGET:
-                        System.out.print("0x" + Lib.toHexString(jtarget));
-                        minCharsPrinted += 10;
-                        maxCharsPrinted += 10;
-                        break;
-                    default:
-                        Lib.assertTrue(false);
-                }
-                if (i + 1 < args.length) {
-                    System.out.print(", ");
-                    minCharsPrinted += 2;
-                    maxCharsPrinted += 2;
-                } else {
-                    // most separation possible is tsi, 5+1+1=7,
-                    // thankfully less than 8 (makes this possible)
-                    Lib.assertTrue(maxCharsPrinted - minCharsPrinted < 8);
-                    // longest string is stj, which is 40-42 chars w/ -d M;
-                    // go for 48
-                    while ((minCharsPrinted % 8) != 0) {
-                        System.out.print(" ");
-                        minCharsPrinted++;
-                        maxCharsPrinted++;
-                    }
-                    while (minCharsPrinted < 48) {
-                        System.out.print("\t");
-                        minCharsPrinted += 8;
-                    }
-                }
-            }
-
-            if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
+            if (valid && Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
                     !Lib.test(dbgFullDisassemble))
                 System.out.print("\n");
         }
@@ -1185,7 +3042,7 @@ public final class Processor {
                         if (registers[regLo] * src2 + registers[regHi] != src1)
                             throw new ArithmeticException();
                     } catch (ArithmeticException e) {
-                        throw new MipsException(exceptionOverflow);
+                        throw mipsException(exceptionOverflow);
                     }
                     break;
 
@@ -1255,7 +3112,7 @@ public final class Processor {
                     break;
 
                 case Mips.SYSCALL:
-                    throw new MipsException(exceptionSyscall);
+                    throw mipsException(exceptionSyscall);
 
                 case Mips.LOAD:
                     value = readMem(addr, size);
@@ -1325,7 +3182,7 @@ public final class Processor {
                     System.err.println("Warning: encountered unimplemented inst");
 
                 case Mips.INVALID:
-                    throw new MipsException(exceptionIllegalInstruction);
+                    throw mipsException(exceptionIllegalInstruction);
 
                 default:
                     Lib.assertNotReached();
@@ -1335,7 +3192,7 @@ public final class Processor {
         private void writeBack() throws MipsException {
             // if instruction is signed, but carry bit !+ sign bit, throw
             if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-                throw new MipsException(exceptionOverflow);
+                throw mipsException(exceptionOverflow);
 
             if (test(Mips.DELAYEDLOAD))
                 delayedLoad(dstReg, (int) dst, mask);
@@ -0,0 +1,327 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.Privilege;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A sampling profiler for user programs. On every timer interrupt that
+ * arrives while a user program is running, it walks the program's stack and
+ * counts the procedures on it. A one-shot timer only interrupts when the
+ * kernel asks it to, so with <tt>Timer.tickless</tt> the profiler schedules
+ * its own interrupts at the rate of the periodic timer instead. When the machine halts, it writes a flat
+ * profile, and the stacks in the collapsed format read by flame graph
+ * tools.
+ *
+ * <p>
+ * Procedures are named from the symbol tables of the executables, so the
+ * profiler is told which executable each physical page was loaded from.
+ * Frames are found through the stack pointer and the frame sizes in the
+ * symbol table, which matches the code the MIPS compiler generates.
+ */
+final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param    processor    the processor to sample.
+     * @param    privilege    encapsulates privileged access to the Nachos
+     * machine.
+     * @param    fileName    the prefix of the files to write. The flat
+     * profile goes to <i>fileName</i><tt>.flat</tt> and the stacks to
+     * <i>fileName</i><tt>.folded</tt>.
+     */
+    Profiler(Processor processor, Privilege privilege, String fileName) {
+        this.processor = processor;
+        this.privilege = privilege;
+        this.fileName = fileName;
+
+        owners = new Coff[processor.getNumPhysPages()];
+
+        if (Machine.timer().isTickless()) {
+            sampleInterrupt = new Runnable() {
+                public void run() {
+                    sampleInterrupt();
+                }
+            };
+            scheduleSample();
+        }
+    }
+
+    /**
+     * Schedule the next sampling interrupt, with the same spread as the
+     * periodic timer. The spread comes from a generator of its own, so
+     * profiling does not change the numbers the rest of the machine draws.
+     */
+    private void scheduleSample() {
+        int delay = Stats.TimerTicks;
+        delay += sampleSpread.nextInt(delay / 10) - (delay / 20);
+
+        privilege.interrupt.schedule(delay, "profile", sampleInterrupt);
+    }
+
+    private void sampleInterrupt() {
+        scheduleSample();
+        processor.sampleProfile();
+    }
+
+    /**
+     * Read the symbols of an executable that has just been opened. They are
+     * read from the host file, because every read through the simulated file
+     * system takes simulated time, and the profiler must not change the time
+     * it measures. An executable that is not a host file gets no symbols.
+     *
+     * @param    coff    the executable.
+     */
+    void executableOpened(Coff coff) {
+        if (!(Machine.stubFileSystem() instanceof StubFileSystem))
+            return;
+
+        final File file = ((StubFileSystem) Machine.stubFileSystem())
+                .getHostFile(coff.getFile());
+        if (file == null)
+            return;
+
+        Object result = privilege.doPrivileged(new PrivilegedAction<Object>() {
+            public Object run() {
+                try {
+                    return Files.readAllBytes(file.toPath());
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        });
+
+        if (!(result instanceof byte[])) {
+            System.err.println("Warning: could not read symbols from "
+                    + file + ": " + result);
+            return;
+        }
+
+        coff.readProcedures((byte[]) result);
+        procedures.put(coff, coff.getProcedures());
+    }
+
+    /**
+     * Note that a page of <i>coff</i> was loaded into physical page
+     * <i>ppn</i>.
+     *
+     * @param    coff    the executable.
+     * @param    ppn    the physical page it was loaded into.
+     */
+    void pageLoaded(Coff coff, int ppn) {
+        owners[ppn] = coff;
+    }
+
+    /**
+     * Record the stack of the user program that is running.
+     */
+    void sample() {
+        ArrayList<String> frames = new ArrayList<String>();
+        String program = null;
+
+        int pc = processor.readRegister(Processor.regPC);
+        int sp = processor.readRegister(Processor.regSP);
+        boolean top = true;
+
+        while (frames.size() < maxDepth) {
+            int paddr = processor.peekTranslate(pc);
+            Coff coff = (paddr == -1) ? null
+                    : owners[Processor.pageFromAddress(paddr)];
+            CoffProcedure procedure = findProcedure(coff, pc);
+
+            if (procedure == null) {
+                frames.add("0x" + Lib.toHexString(pc));
+                break;
+            }
+
+            if (program == null)
+                program = coff.getName();
+            frames.add(procedure.name);
+
+            // only the innermost procedure can be part way into its prologue
+            boolean adjustedSP = !top, savedRA = !top;
+            for (int address = procedure.address;
+                 top && address != pc && address - procedure.address < 64;
+                 address += 4) {
+                int word = peekWord(address);
+                if ((word >>> 16) == 0x27BD)
+                    adjustedSP = true;        // addiu $sp, $sp, -frameSize
+                else if ((word >>> 16) == 0xAFBF)
+                    savedRA = true;            // sw $ra, offset($sp)
+            }
+
+            int returnAddress;
+            if (savedRA && procedure.savesReturnAddress()) {
+                int address = sp + procedure.returnAddressOffset();
+                if (processor.peekTranslate(address) == -1)
+                    break;
+                returnAddress = peekWord(address);
+            } else if (top) {
+                returnAddress = processor.readRegister(Processor.regRA);
+            } else {
+                break;
+            }
+
+            if (adjustedSP)
+                sp += procedure.frameSize;
+
+            if (returnAddress == 0 || (returnAddress & 3) != 0)
+                break;
+
+            // look up the jal, in case the call is the last thing in the
+            // procedure
+            pc = returnAddress - 8;
+            top = false;
+        }
+
+        numSamples++;
+
+        StringBuilder stack = new StringBuilder();
+        stack.append(program == null ? "[unknown]" : program);
+        for (int i = frames.size() - 1; i >= 0; i--)
+            stack.append(';').append(frames.get(i));
+        count(stacks, stack.toString(), 0);
+
+        count(flat, frames.get(0), 0);
+        for (String frame : new HashSet<String>(frames))
+            count(flat, frame, 1);
+    }
+
+    /**
+     * Write the profile files.
+     */
+    void write() {
+        Object result = privilege.doPrivileged(new PrivilegedAction<Object>() {
+            public Object run() {
+                try {
+                    writeFlat(fileName + ".flat");
+                    writeStacks(fileName + ".folded");
+                    return null;
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        });
+
+        if (result != null)
+            System.out.println("Could not write profile: " + result);
+        else
+            System.out.println("Profile: " + numSamples + " samples written to "
+                    + fileName + ".flat and " + fileName + ".folded");
+    }
+
+    private void writeFlat(String name) throws IOException {
+        ArrayList<Map.Entry<String, long[]>> entries =
+                new ArrayList<Map.Entry<String, long[]>>(flat.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+            public int compare(Map.Entry<String, long[]> a,
+                               Map.Entry<String, long[]> b) {
+                if (a.getValue()[0] != b.getValue()[0])
+                    return Long.compare(b.getValue()[0], a.getValue()[0]);
+                return Long.compare(b.getValue()[1], a.getValue()[1]);
+            }
+        });
+
+        try (PrintWriter out = new PrintWriter(new FileWriter(name))) {
+            out.println("Flat profile of " + numSamples
+                    + " samples of user time");
+            out.println();
+            out.println("  self%  total%     self    total  procedure");
+
+            for (Map.Entry<String, long[]> entry : entries) {
+                long self = entry.getValue()[0], total = entry.getValue()[1];
+                out.printf("%7.2f %7.2f %8d %8d  %s%n",
+                        100.0 * self / numSamples, 100.0 * total / numSamples,
+                        self, total, entry.getKey());
+            }
+        }
+    }
+
+    private void writeStacks(String name) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(name))) {
+            for (Map.Entry<String, long[]> entry : stacks.entrySet())
+                out.println(entry.getKey() + " " + entry.getValue()[0]);
+        }
+    }
+
+    private static void count(HashMap<String, long[]> counts, String key,
+                              int index) {
+        long[] value = counts.get(key);
+        if (value == null) {
+            value = new long[2];
+            counts.put(key, value);
+        }
+        value[index]++;
+    }
+
+    private CoffProcedure findProcedure(Coff coff, int vaddr) {
+        if (coff == null)
+            return null;
+
+        CoffProcedure[] table = procedures.get(coff);
+        if (table == null)
+            return null;
+
+        // the last procedure starting at or below vaddr
+        int low = 0, high = table.length - 1, found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (Integer.compareUnsigned(table[middle].address, vaddr) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return (found == -1) ? null : table[found];
+    }
+
+    private int peekWord(int vaddr) {
+        int paddr = processor.peekTranslate(vaddr);
+        if (paddr == -1 || (vaddr & 3) != 0)
+            return 0;
+
+        return processor.getPhysicalMemory().readWord(paddr);
+    }
+
+    private Processor processor;
+    private Privilege privilege;
+    private String fileName;
+
+    /**
+     * The executable each physical page was loaded from.
+     */
+    private Coff[] owners;
+    private HashMap<Coff, CoffProcedure[]> procedures =
+            new HashMap<Coff, CoffProcedure[]>();
+
+    private long numSamples = 0;
+    /**
+     * Samples per procedure: at the top of the stack, and anywhere on it.
+     */
+    private HashMap<String, long[]> flat = new HashMap<String, long[]>();
+    /**
+     * Samples per stack, outermost procedure first.
+     */
+    private HashMap<String, long[]> stacks = new HashMap<String, long[]>();
+
+    private Runnable sampleInterrupt = null;
+    private Random sampleSpread = new Random(0);
+
+    private static final int maxDepth = 64;
+}
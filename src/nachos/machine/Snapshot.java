@@ -0,0 +1,197 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.Privilege;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedAction;
+
+/**
+ * Writes the state of the whole machine to a file, and reads it back, so that
+ * many runs can start from the point that one run reached. A snapshot holds
+ * the statistics (and with them the simulated time), the random number
+ * generator, the pending interrupts, the processor registers, TLB and
+ * physical memory, and whatever the kernel chooses to save.
+ *
+ * <p>
+ * Devices are only saved as their pending interrupts, so characters or
+ * packets in flight when the snapshot is taken are lost.
+ */
+final class Snapshot {
+    /**
+     * Allocate a new snapshot writer and reader.
+     *
+     * @param    privilege encapsulates privileged access to the Nachos
+     * machine.
+     */
+    Snapshot(Privilege privilege) {
+        this.privilege = privilege;
+    }
+
+    /**
+     * Write a snapshot of the machine to the specified file. Called from an
+     * interrupt handler, between user instructions.
+     *
+     * @param    fileName    the file to write.
+     * @return <tt>true</tt> if the snapshot was written, or <tt>false</tt> if
+     * the kernel could not be snapshotted at this point.
+     */
+    boolean save(final String fileName) {
+        Lib.assertTrue(Machine.processor() != null,
+                "snapshots need a processor");
+
+        ByteArrayOutputStream kernelState = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(kernelState);
+            if (!Kernel.kernel.saveSnapshot(out)) {
+                Lib.debug(dbgSnapshot, "Deferring snapshot " + fileName
+                        + " at time = " + privilege.stats.totalTicks
+                        + ": the kernel cannot be saved now");
+                return false;
+            }
+        } catch (IOException e) {
+            Lib.assertNotReached("could not save kernel state: " + e);
+        }
+
+        final byte[] kernelBytes = kernelState.toByteArray();
+
+        Object result = privilege.doPrivileged(new PrivilegedAction<Object>() {
+            public Object run() {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(
+                                new FileOutputStream(fileName)))) {
+                    write(out, kernelBytes);
+                    return null;
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        });
+
+        Lib.assertTrue(result == null,
+                "could not write snapshot " + fileName + ": " + result);
+
+        Lib.debug(dbgSnapshot, "Saved snapshot " + fileName + " at time = "
+                + privilege.stats.totalTicks);
+
+        return true;
+    }
+
+    /**
+     * Restore the machine from a snapshot in the specified file, and then
+     * let the kernel restore its own state.
+     *
+     * @param    fileName    the file to read.
+     */
+    void restore(final String fileName) {
+        Lib.assertTrue(Machine.processor() != null,
+                "snapshots need a processor");
+
+        Object result = privilege.doPrivileged(new PrivilegedAction<Object>() {
+            public Object run() {
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(
+                                new FileInputStream(fileName)))) {
+                    return read(in);
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        });
+
+        Lib.assertTrue(result instanceof byte[],
+                "could not read snapshot " + fileName + ": " + result);
+
+        Lib.debug(dbgSnapshot, "Restored snapshot " + fileName
+                + " at time = " + privilege.stats.totalTicks);
+
+        try {
+            Kernel.kernel.restoreSnapshot(new DataInputStream(
+                    new ByteArrayInputStream((byte[]) result)));
+        } catch (IOException e) {
+            Lib.assertNotReached("bad kernel state in snapshot: " + e);
+        }
+    }
+
+    private void write(DataOutputStream out, byte[] kernelBytes)
+            throws IOException {
+        Stats stats = privilege.stats;
+
+        out.writeInt(magic);
+        out.writeInt(version);
+
+        out.writeLong(stats.totalTicks);
+        out.writeLong(stats.kernelTicks);
+        out.writeLong(stats.userTicks);
+        out.writeInt(stats.numDiskReads);
+        out.writeInt(stats.numDiskWrites);
+        out.writeInt(stats.numConsoleReads);
+        out.writeInt(stats.numConsoleWrites);
+        out.writeInt(stats.numPageFaults);
+        out.writeInt(stats.numTLBMisses);
+        out.writeInt(stats.numPacketsSent);
+        out.writeInt(stats.numPacketsReceived);
+
+        out.writeLong(Lib.saveRandom());
+
+        Machine.interrupt().saveSnapshot(out);
+        Machine.processor().saveSnapshot(out);
+
+        out.writeInt(kernelBytes.length);
+        out.write(kernelBytes);
+    }
+
+    /**
+     * Read a snapshot into the machine, and return the kernel's part of it.
+     */
+    private byte[] read(DataInputStream in) throws IOException {
+        Stats stats = privilege.stats;
+
+        Lib.assertTrue(in.readInt() == magic, "not a snapshot");
+        Lib.assertTrue(in.readInt() == version, "unsupported snapshot version");
+
+        long totalTicks = in.readLong();
+        long kernelTicks = in.readLong();
+        long userTicks = in.readLong();
+        stats.numDiskReads = in.readInt();
+        stats.numDiskWrites = in.readInt();
+        stats.numConsoleReads = in.readInt();
+        stats.numConsoleWrites = in.readInt();
+        stats.numPageFaults = in.readInt();
+        stats.numTLBMisses = in.readInt();
+        stats.numPacketsSent = in.readInt();
+        stats.numPacketsReceived = in.readInt();
+
+        Lib.restoreRandom(in.readLong());
+
+        // the interrupts are moved relative to the current time, so do them
+        // before changing it
+        Machine.interrupt().restoreSnapshot(in, totalTicks);
+        stats.totalTicks = totalTicks;
+        stats.kernelTicks = kernelTicks;
+        stats.userTicks = userTicks;
+
+        Machine.processor().restoreSnapshot(in);
+
+        byte[] kernelBytes = new byte[in.readInt()];
+        in.readFully(kernelBytes);
+
+        return kernelBytes;
+    }
+
+    private Privilege privilege;
+
+    private static final int magic = 0x4E534E50;
+    private static final int version = 2;
+
+    private static final char dbgSnapshot = 'N';
+}
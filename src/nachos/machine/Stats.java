@@ -92,6 +92,47 @@ public final class Stats {
     public Stats() {
     }
 
+    /**
+     * Register each statistic as a counter, read from this object.
+     *
+     * @param    metrics    the registry to add them to.
+     */
+    void register(Metrics metrics) {
+        metrics.counter("ticks.total", new Metrics.Gauge() {
+            public long value() { return totalTicks; }
+        });
+        metrics.counter("ticks.kernel", new Metrics.Gauge() {
+            public long value() { return kernelTicks; }
+        });
+        metrics.counter("ticks.user", new Metrics.Gauge() {
+            public long value() { return userTicks; }
+        });
+        metrics.counter("disk.reads", new Metrics.Gauge() {
+            public long value() { return numDiskReads; }
+        });
+        metrics.counter("disk.writes", new Metrics.Gauge() {
+            public long value() { return numDiskWrites; }
+        });
+        metrics.counter("console.reads", new Metrics.Gauge() {
+            public long value() { return numConsoleReads; }
+        });
+        metrics.counter("console.writes", new Metrics.Gauge() {
+            public long value() { return numConsoleWrites; }
+        });
+        metrics.counter("paging.pageFaults", new Metrics.Gauge() {
+            public long value() { return numPageFaults; }
+        });
+        metrics.counter("paging.tlbMisses", new Metrics.Gauge() {
+            public long value() { return numTLBMisses; }
+        });
+        metrics.counter("network.received", new Metrics.Gauge() {
+            public long value() { return numPacketsReceived; }
+        });
+        metrics.counter("network.sent", new Metrics.Gauge() {
+            public long value() { return numPacketsSent; }
+        });
+    }
+
     /**
      * Print out the statistics in this object.
      */
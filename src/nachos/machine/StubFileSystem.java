@@ -120,6 +120,21 @@ public class StubFileSystem implements FileSystem {
         }
     }
 
+    /**
+     * Return the host file behind a file opened by this file system, so that
+     * the machine can read it without taking simulated time.
+     *
+     * @param file a file opened by this file system.
+     * @return the host file, or <tt>null</tt> if <i>file</i> was not opened by
+     * this file system.
+     */
+    File getHostFile(OpenFile file) {
+        if (!(file instanceof StubOpenFile) || file.getFileSystem() != this)
+            return null;
+
+        return new File(directory, file.getName());
+    }
+
     private class StubOpenFile extends OpenFileWithPosition {
         private RandomAccessFile file = null;
         private boolean open = false;
@@ -5,7 +5,11 @@ package nachos.machine;
 import nachos.security.Privilege;
 import nachos.threads.KThread;
 
+import java.lang.reflect.Method;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
@@ -20,6 +24,25 @@ import java.util.Vector;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.sh.
+ *
+ * <p>
+ * By default each TCB runs on a platform thread. If <tt>TCB.backend</tt> is
+ * <tt>virtual</tt>, TCBs after the first run on virtual threads instead.
+ * Virtual threads need Java 21; older JVMs fall back to platform threads.
+ * Up to <tt>TCB.maxVirtualThreads</tt> TCBs, 100000 by default, can then
+ * exist at once.
+ *
+ * <p>
+ * Control is handed off with <tt>LockSupport.park()</tt> and a volatile
+ * flag, after spinning up to <tt>TCB.spinCount</tt> times on the flag. If
+ * <tt>TCB.handoff</tt> is <tt>monitor</tt>, platform threads instead wait on
+ * the monitor of their TCB, as Nachos always used to. Virtual threads always
+ * park, since a thread waiting on a monitor ties up its carrier thread.
+ *
+ * <p>
+ * When a TCB on a platform thread is destroyed, its Java thread is kept,
+ * parked, for the next TCB to start. At most <tt>TCB.poolSize</tt> threads
+ * are kept this way.
  */
 public final class TCB {
     /**
@@ -56,6 +79,35 @@ public final class TCB {
     private static Vector<TCB> runningThreads = new Vector<TCB>();
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
+    /**
+     * <tt>true</tt> if TCBs hand off control with <tt>LockSupport</tt>
+     * instead of their monitors. Set by <tt>givePrivilege()</tt>.
+     */
+    private static boolean parked = true;
+    /**
+     * How many times a TCB checks its <tt>running</tt> flag before parking.
+     */
+    private static int spinCount = 0;
+    /**
+     * Makes virtual threads, or <tt>null</tt> to make platform threads.
+     */
+    private static ThreadFactory virtualThreads = null;
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when they run on virtual threads. A parked virtual thread
+     * keeps only its few frames on the heap, so this is far above
+     * <tt>maxThreads</tt>.
+     */
+    private static int maxVirtualThreads;
+    /**
+     * Platform threads left over from destroyed TCBs, parked until
+     * <tt>start(Runnable)</tt> gives them another TCB to run. Only ever holds
+     * up to <tt>poolSize</tt> threads, and never so many that they and the
+     * running TCBs together exceed <tt>maxThreads</tt>.
+     */
+    private static ConcurrentLinkedQueue<Carrier> idleCarriers =
+            new ConcurrentLinkedQueue<Carrier>();
+    private static int poolSize;
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -78,7 +130,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
      * <tt>waitForInterrupt()</tt> returns in the doomed TCB, <tt>yield()</tt>
@@ -88,7 +140,6 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
 
     /**
      * Allocate a new TCB.
@@ -107,6 +158,52 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
         TCB.privilege = privilege;
         privilege.tcb = new TCBPrivilege();
+
+        String backend = Config.getString("TCB.backend", "platform");
+        Lib.assertTrue(backend.equals("platform") || backend.equals("virtual"),
+                "unknown TCB.backend: " + backend);
+
+        String handoff = Config.getString("TCB.handoff", "park");
+        Lib.assertTrue(handoff.equals("park") || handoff.equals("monitor"),
+                "unknown TCB.handoff: " + handoff);
+
+        spinCount = Config.getInteger("TCB.spinCount", 0);
+        Lib.assertTrue(spinCount >= 0, "TCB.spinCount must not be negative");
+
+        poolSize = Config.getInteger("TCB.poolSize", 16);
+        Lib.assertTrue(poolSize >= 0, "TCB.poolSize must not be negative");
+
+        maxVirtualThreads = Config.getInteger("TCB.maxVirtualThreads",
+                100000);
+        Lib.assertTrue(maxVirtualThreads > 0,
+                "TCB.maxVirtualThreads must be positive");
+
+        if (backend.equals("virtual")) {
+            virtualThreads = virtualThreadFactory();
+            if (virtualThreads == null)
+                System.out.println("Virtual threads need Java 21; "
+                        + "using platform threads");
+        }
+
+        parked = (backend.equals("virtual") || handoff.equals("park"));
+    }
+
+    /**
+     * Return a factory for virtual threads, found by reflection so that
+     * Nachos still builds and runs on JVMs without them.
+     *
+     * @return the factory, or <tt>null</tt> if this JVM has no virtual
+     * threads.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
     }
 
     /**
@@ -165,7 +262,8 @@ public final class TCB {
         /* Make sure there aren't too many running TCBs already. This
          * limitation exists in an effort to prevent wild thread usage.
          */
-        Lib.assertTrue(runningThreads.size() < maxThreads);
+        Lib.assertTrue(runningThreads.size() <
+                (virtualThreads != null ? maxVirtualThreads : maxThreads));
 
         isFirstTCB = (currentTCB == null);
 
@@ -185,30 +283,39 @@ public final class TCB {
         this.target = target;
 
         if (!isFirstTCB) {
-            /* If this is not the first TCB, we have to make a new Java thread
-             * to run it. Creating Java threads is a privileged operation.
+            /* If this is not the first TCB, we need a Java thread to run it.
+             * We reuse an idle one if there is one, and otherwise make a new
+             * one. Creating Java threads is a privileged operation.
              */
-            tcbTarget = new Runnable() {
-                public void run() {
-                    threadroot();
-                }
-            };
-
-            privilege.doPrivileged(new Runnable() {
-                public void run() {
-                    javaThread = new Thread(tcbTarget);
-                }
-            });
-
-            /* The Java thread hasn't yet started, but we need to get it
-             * blocking in yield(). We do this by temporarily turning off the
-             * current TCB, starting the new Java thread, and waiting for it
-             * to wake us up from threadroot(). Once the new TCB wakes us up,
-             * it's safe to context switch to the new TCB.
+            Carrier carrier = idleCarriers.poll();
+            if (carrier == null) {
+                final Carrier newCarrier = new Carrier();
+
+                privilege.doPrivileged(new Runnable() {
+                    public void run() {
+                        if (virtualThreads != null) {
+                            newCarrier.thread =
+                                    virtualThreads.newThread(newCarrier);
+                        } else {
+                            newCarrier.thread = new Thread(newCarrier);
+                        }
+                    }
+                });
+
+                carrier = newCarrier;
+            }
+
+            javaThread = carrier.thread;
+
+            /* The Java thread isn't running this TCB yet, but we need to get
+             * it blocking in yield(). We do this by temporarily turning off
+             * the current TCB, handing this TCB to the Java thread, and
+             * waiting for it to wake us up from threadroot(). Once the new
+             * TCB wakes us up, it's safe to context switch to the new TCB.
              */
             currentTCB.running = false;
 
-            this.javaThread.start();
+            carrier.run(this);
             currentTCB.waitForInterrupt();
         } else {
             /* This is the first TCB, so we don't need to make a new Java
@@ -218,6 +325,15 @@ public final class TCB {
 
             /* All we have to do now is invoke threadroot() directly. */
             threadroot();
+
+            /* threadroot() only returns if this TCB was destroyed while others
+             * still run. Virtual threads are daemon threads, so the JVM would
+             * exit if this thread ended now. Keep it until Nachos exits.
+             */
+            if (virtualThreads != null) {
+                while (true)
+                    LockSupport.park();
+            }
         }
     }
 
@@ -354,14 +470,29 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
+     * Waits until the <tt>running</tt> flag of this TCB is set to
+     * <tt>true</tt>, parking the thread or waiting on the monitor bound to
+     * this TCB, depending on the backend. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+        if (parked) {
+            // the volatile running flag orders everything done before the
+            // matching interrupt() before whatever follows here
+            for (int i = 0; i < spinCount && !running; i++)
+                Thread.onSpinWait();
+
+            while (!running)
+                LockSupport.park(this);
+        } else {
+            waitForMonitor();
+        }
+    }
+
+    private synchronized void waitForMonitor() {
         while (!running) {
             try {
                 wait();
@@ -372,15 +503,80 @@ public final class TCB {
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
+     * and unparking its thread or signalling the monitor bound to it. Used in the ping-pong process of
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+        if (parked) {
+            running = true;
+            LockSupport.unpark(javaThread);
+        } else {
+            notifyMonitor();
+        }
+    }
+
+    private synchronized void notifyMonitor() {
         running = true;
         notify();
     }
 
+    /**
+     * A Java thread that runs TCBs, one after another. It runs each TCB until
+     * the TCB is destroyed, and then waits in <tt>idleCarriers</tt> for the
+     * next one, unless the pool is full or the thread is virtual, in which
+     * case it ends.
+     */
+    private static class Carrier implements Runnable {
+        /**
+         * Start this carrier running the specified TCB: start the Java
+         * thread if it is new, or wake it up if it is idle.
+         */
+        void run(TCB tcb) {
+            Lib.assertTrue(this.tcb == null);
+
+            this.tcb = tcb;
+            if (!started) {
+                started = true;
+                thread.start();
+            } else {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        public void run() {
+            do {
+                tcb.threadroot();
+            } while (waitForTCB());
+        }
+
+        /**
+         * Called once a TCB has been destroyed. Put this carrier in the pool
+         * and wait for another TCB, if there is room.
+         *
+         * @return <tt>true</tt> if there is another TCB to run, or
+         * <tt>false</tt> if the thread should end.
+         */
+        private boolean waitForTCB() {
+            tcb = null;
+
+            if (virtualThreads != null || idleCarriers.size() >= poolSize ||
+                    runningThreads.size() + idleCarriers.size() >= maxThreads)
+                return false;
+
+            idleCarriers.add(this);
+
+            while (tcb == null)
+                LockSupport.park(this);
+
+            return true;
+        }
+
+        Thread thread;
+        private boolean started = false;
+        private volatile TCB tcb = null;
+    }
+
     private void associateThread(KThread thread) {
         // make sure AutoGrader.runningThread() gets called only once per
         // context switch
@@ -13,6 +13,12 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is set, the timer is instead a one-shot timer:
+ * it only interrupts at the time last given to <tt>setDeadline()</tt>, so a
+ * kernel with nothing to preempt and no one sleeping takes no timer
+ * interrupts at all.
  */
 public final class Timer {
     /**
@@ -37,7 +43,48 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+	if (!tickless)
+	    scheduleInterrupt();
+    }
+
+    /**
+     * Tests whether this is a one-shot timer, in which case the kernel must
+     * call <tt>setDeadline()</tt> to get any timer interrupts.
+     *
+     * @return	<tt>true</tt> if <tt>Timer.tickless</tt> is set.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Set the time of the next interrupt of a one-shot timer, replacing any
+     * deadline set before. A deadline that has already passed interrupts on
+     * the next tick.
+     *
+     * @param	time	the time at which to interrupt, or
+     *			<tt>Long.MAX_VALUE</tt> to not interrupt.
+     */
+    public void setDeadline(long time) {
+	Lib.assertTrue(tickless);
+
+	privilege.interrupt.cancel(timerInterrupt);
+
+	if (time != Long.MAX_VALUE)
+	    privilege.interrupt.schedule(Math.max(1, time - getTime()),
+					 "timer", timerInterrupt);
+    }
+
+    /**
+     * Return a time slice of approximately 500 clock ticks, with the same
+     * randomness as the interval between periodic interrupts.
+     *
+     * @return	the number of ticks in the time slice.
+     */
+    public int randomSlice() {
+	int delay = Stats.TimerTicks;
+	return delay + Lib.random(delay/10) - (delay/20);
     }
 
     /**
@@ -59,21 +106,35 @@ public final class Timer {
 	return privilege.stats.totalTicks;
     }
 
+    /**
+     * Get the time spent running user programs. The rest of the time, the
+     * kernel was running.
+     *
+     * @return	the number of clock ticks spent in user mode since Nachos
+     *		started.
+     */
+    public long getUserTime() {
+	return privilege.stats.userTicks;
+    }
+
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (!tickless)
+	    scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
 
+	// a one-shot timer would bias the profile towards the deadlines the
+	// kernel sets, so the profiler samples on its own interrupts instead
+	if (!tickless && Machine.processor() != null)
+	    Machine.processor().sampleProfile();
+
 	if (handler != null)
 	    handler.run();
     }
 
     private void scheduleInterrupt() {
-	int delay = Stats.TimerTicks;
-	delay += Lib.random(delay/10) - (delay/20);
-
-	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	privilege.interrupt.schedule(randomSlice(), "timer", timerInterrupt);
     }
 
     private void scheduleAutoGraderInterrupt() {
@@ -86,4 +147,5 @@ public final class Timer {
 
     private Privilege privilege;
     private Runnable handler = null;
+    private boolean tickless;
 }
@@ -0,0 +1,127 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A trace sink that writes fixed-size binary records into a ring buffer in a
+ * memory-mapped file. Once the buffer is full, each record overwrites the
+ * oldest one, so the file always holds the latest <i>capacity</i> records.
+ * <tt>TraceDecoder</tt> turns the file back into disassembly.
+ *
+ * <p>
+ * The file starts with a header of <tt>headerLength</tt> bytes: the magic
+ * number, the record length, the capacity, and at <tt>countOffset</tt> the
+ * number of records ever written, as a long. Records follow, each
+ * <tt>recordLength</tt> bytes, laid out as given by the
+ * <tt>record<i>*</i>Offset</tt> constants. Everything is little-endian.
+ */
+public final class TraceBuffer implements TraceSink {
+    /**
+     * Allocate a new trace buffer by mapping a file. The file must already
+     * be <tt>fileLength(capacity)</tt> bytes long. The mapping stays valid
+     * after the channel is closed.
+     *
+     * @param    channel    a channel open for reading and writing on the
+     * file to map.
+     * @param    capacity    the number of records the buffer holds.
+     * @throws IOException if the file could not be mapped.
+     */
+    public TraceBuffer(FileChannel channel, int capacity) throws IOException {
+        Lib.assertTrue(capacity > 0 && capacity <= maxCapacity,
+                "bad trace capacity: " + capacity);
+
+        this.capacity = capacity;
+
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                fileLength(capacity));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(0, magic);
+        buffer.putInt(4, recordLength);
+        buffer.putInt(8, capacity);
+        buffer.putInt(12, 0);
+        buffer.putLong(countOffset, 0);
+    }
+
+    /**
+     * Return the length of the file holding a buffer of <i>capacity</i>
+     * records.
+     *
+     * @param    capacity    the number of records.
+     * @return the length of the file, in bytes.
+     */
+    public static long fileLength(int capacity) {
+        return headerLength + (long) capacity * recordLength;
+    }
+
+    public void record(int kind, int size, long tick, int pc, int instruction,
+                       int address, int value) {
+        int offset = headerLength + next * recordLength;
+
+        buffer.putLong(offset + recordTickOffset, tick);
+        buffer.putInt(offset + recordPCOffset, pc);
+        buffer.putInt(offset + recordInstructionOffset, instruction);
+        buffer.putInt(offset + recordAddressOffset, address);
+        buffer.putInt(offset + recordValueOffset, value);
+        buffer.put(offset + recordKindOffset, (byte) kind);
+        buffer.put(offset + recordSizeOffset, (byte) size);
+
+        if (++next == capacity)
+            next = 0;
+
+        buffer.putLong(countOffset, ++count);
+    }
+
+    public void close() {
+        buffer.force();
+    }
+
+    /**
+     * Check the header of a trace buffer and return its capacity.
+     *
+     * @param    buffer    the mapped file, in little-endian order.
+     * @return the capacity, or -1 if the buffer does not hold a trace.
+     */
+    static int readCapacity(ByteBuffer buffer) {
+        if (buffer.limit() < headerLength || buffer.getInt(0) != magic
+                || buffer.getInt(4) != recordLength)
+            return -1;
+
+        int capacity = buffer.getInt(8);
+        if (capacity <= 0 || buffer.limit() < fileLength(capacity))
+            return -1;
+
+        return capacity;
+    }
+
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int next = 0;
+    private long count = 0;
+
+    private static final int magic = 0x4E545243;    // "NTRC"
+
+    static final int headerLength = 32;
+    static final int countOffset = 16;
+
+    static final int recordLength = 32;
+    static final int recordTickOffset = 0;
+    static final int recordPCOffset = 8;
+    static final int recordInstructionOffset = 12;
+    static final int recordAddressOffset = 16;
+    static final int recordValueOffset = 20;
+    static final int recordKindOffset = 24;
+    static final int recordSizeOffset = 25;
+
+    /**
+     * The most records that fit in one mapping.
+     */
+    public static final int maxCapacity =
+            (Integer.MAX_VALUE - headerLength) / recordLength;
+}
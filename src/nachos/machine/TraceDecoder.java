@@ -0,0 +1,207 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Prints the records in a trace file written by <tt>TraceBuffer</tt>, oldest
+ * first, as the disassembly the <tt>m</tt> debug flag prints while running.
+ * Run it outside of Nachos:
+ *
+ * <pre>
+ * java nachos.machine.TraceDecoder [-p] [-t] <i>tracefile</i>
+ * </pre>
+ *
+ * <p>
+ * <tt>-p</tt> also prints memory accesses, as with <tt>-d mp</tt>, and
+ * <tt>-t</tt> puts the tick before each instruction. The records hold no
+ * register values, so the output of the <tt>M</tt> flag cannot be
+ * reproduced.
+ */
+public final class TraceDecoder {
+    private TraceDecoder(PrintWriter out, boolean memory, boolean ticks) {
+        this.out = out;
+        this.memory = memory;
+        this.ticks = ticks;
+    }
+
+    /**
+     * Decode a trace file to standard output.
+     *
+     * @param    args    the command line arguments.
+     */
+    public static void main(String[] args) {
+        boolean memory = false, ticks = false;
+        String fileName = null;
+
+        for (String arg : args) {
+            if (arg.equals("-p"))
+                memory = true;
+            else if (arg.equals("-t"))
+                ticks = true;
+            else if (fileName == null && !arg.startsWith("-"))
+                fileName = arg;
+            else
+                usage();
+        }
+
+        if (fileName == null)
+            usage();
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        } catch (IOException e) {
+            System.err.println("could not read " + fileName + ": " + e);
+            System.exit(1);
+            return;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        int capacity = TraceBuffer.readCapacity(buffer);
+        if (capacity == -1) {
+            System.err.println(fileName + " is not a trace file");
+            System.exit(1);
+        }
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out)));
+        new TraceDecoder(out, memory, ticks).decode(buffer, capacity);
+        out.flush();
+    }
+
+    private static void usage() {
+        System.err.println("usage: java nachos.machine.TraceDecoder "
+                + "[-p] [-t] <tracefile>");
+        System.exit(1);
+    }
+
+    /**
+     * Print the records in the buffer, starting at the oldest one still
+     * there.
+     *
+     * @param    buffer    the trace file.
+     * @param    capacity    the number of records it holds.
+     */
+    private void decode(ByteBuffer buffer, int capacity) {
+        long count = buffer.getLong(TraceBuffer.countOffset);
+        long first = Math.max(0, count - capacity);
+
+        for (long i = first; i < count; i++) {
+            int offset = TraceBuffer.headerLength
+                    + (int) (i % capacity) * TraceBuffer.recordLength;
+
+            decodeRecord(buffer.get(offset + TraceBuffer.recordKindOffset),
+                    buffer.get(offset + TraceBuffer.recordSizeOffset),
+                    buffer.getLong(offset + TraceBuffer.recordTickOffset),
+                    buffer.getInt(offset + TraceBuffer.recordPCOffset),
+                    buffer.getInt(offset +
+                            TraceBuffer.recordInstructionOffset),
+                    buffer.getInt(offset + TraceBuffer.recordAddressOffset),
+                    buffer.getInt(offset + TraceBuffer.recordValueOffset));
+        }
+
+        endLine();
+    }
+
+    private void decodeRecord(int kind, int size, long tick, int pc,
+                              int instruction, int address, int value) {
+        switch (kind) {
+            case TraceSink.recordFetch:
+                endLine();
+
+                if (memory)
+                    printRead(address, 4, value);
+
+                startLine(tick, pc);
+
+                StringBuilder line = new StringBuilder();
+                boolean valid = Processor.disassemble(line,
+                        new Processor.Decoded(instruction), pc + 4, null);
+                out.print(line);
+
+                // invalid instructions end their own line
+                fetched = true;
+                fetchedPC = pc;
+                open = valid;
+                if (memory)
+                    endLine();
+                break;
+
+            case TraceSink.recordRead:
+                if (memory)
+                    printRead(address, size, value);
+                break;
+
+            case TraceSink.recordWrite:
+                if (memory)
+                    out.print("\twriteMem vaddr=0x" + Lib.toHexString(address)
+                            + ", size=" + size + ", value=0x"
+                            + Lib.toHexString(value, size * 2) + "\n");
+                break;
+
+            case TraceSink.recordException:
+                // a failed fetch leaves no fetch record
+                if (!fetched || pc != fetchedPC) {
+                    endLine();
+                    if (memory)
+                        out.print("\treadMem vaddr=0x" + Lib.toHexString(pc)
+                                + ", size=4\n");
+                    else
+                        startLine(tick, pc);
+                }
+
+                String name = (value >= 0
+                        && value < Processor.exceptionNames.length)
+                        ? Processor.exceptionNames[value] : "" + value;
+                out.print("exception: " + name + "\n");
+
+                fetched = false;
+                open = false;
+                break;
+
+            default:
+                endLine();
+                out.print("bad record kind: " + kind + "\n");
+        }
+    }
+
+    private void startLine(long tick, int pc) {
+        if (ticks)
+            out.print("tick=" + tick + "\t");
+        out.print("PC=0x" + Lib.toHexString(pc) + "\t");
+    }
+
+    private void endLine() {
+        if (open)
+            out.print("\n");
+        open = false;
+    }
+
+    private void printRead(int address, int size, int value) {
+        out.print("\treadMem vaddr=0x" + Lib.toHexString(address)
+                + ", size=" + size + "\n");
+        out.print("\t\tvalue read=0x" + Lib.toHexString(value, size * 2)
+                + "\n");
+    }
+
+    private PrintWriter out;
+    private boolean memory, ticks;
+    /**
+     * Whether an instruction has been fetched since the last exception, and
+     * whether its line still needs a newline.
+     */
+    private boolean fetched = false, open = false;
+    private int fetchedPC;
+}
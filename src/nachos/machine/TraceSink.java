@@ -0,0 +1,58 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * Receives a record of every instruction fetch, data memory access and
+ * exception of the user program, when set with
+ * <tt>Processor.setTraceSink()</tt>. Unlike the disassembly debug flags,
+ * a sink is called with plain values and need not format anything, so
+ * tracing can stay on for whole workloads.
+ *
+ * @see TraceBuffer
+ * @see TraceDecoder
+ */
+public interface TraceSink {
+    /**
+     * An instruction was fetched. The address is the PC and the value is the
+     * instruction word.
+     */
+    public static final int recordFetch = 0;
+    /**
+     * Data was read. The value is what was read, sign-extended as by
+     * <tt>PhysicalMemory.read()</tt>.
+     */
+    public static final int recordRead = 1;
+    /**
+     * Data was written. The value is what was written.
+     */
+    public static final int recordWrite = 2;
+    /**
+     * An exception was raised. The address is the bad virtual address, or 0
+     * if there is none, and the value is the cause (see the
+     * <tt>Processor.exception<i>*</i></tt> constants).
+     */
+    public static final int recordException = 3;
+
+    /**
+     * Record an event.
+     *
+     * @param    kind    the kind of event (see the <tt>record<i>*</i></tt>
+     * constants).
+     * @param    size    the number of bytes accessed, or 0 for exceptions.
+     * @param    tick    the simulated time.
+     * @param    pc    the address of the instruction being executed.
+     * @param    instruction    the instruction word, or 0 if the fetch
+     * failed.
+     * @param    address    the virtual address accessed.
+     * @param    value    the value read or written.
+     */
+    public void record(int kind, int size, long tick, int pc, int instruction,
+                       int address, int value);
+
+    /**
+     * Finish writing any records still held by the sink. Called when the
+     * machine halts.
+     */
+    public void close();
+}
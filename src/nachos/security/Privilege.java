@@ -158,6 +158,13 @@ public abstract class Privilege {
          */
         public void schedule(long when, String type, Runnable handler);
 
+        /**
+         * Cancel every pending interrupt that would call <i>handler</i>.
+         *
+         * @param    handler    the interrupt handler.
+         */
+        public void cancel(Runnable handler);
+
         /**
          * Advance the simulated time.
          *
@@ -166,6 +173,24 @@ public abstract class Privilege {
          *                     MIPS user code.
          */
         public void tick(boolean inKernelMode);
+
+        /**
+         * Advance the simulated time by several user ticks at once. The
+         * caller must ensure that no interrupt is due before the last of
+         * them, so this has the same effect as calling
+         * <tt>tick(false)</tt> <i>count</i> times.
+         *
+         * @param count the number of user ticks to advance.
+         */
+        public void tickUser(int count);
+
+        /**
+         * Return the time at which the earliest pending interrupt is due, or
+         * <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+         *
+         * @return the time of the next interrupt.
+         */
+        public long nextInterruptTime();
     }
 
     /**
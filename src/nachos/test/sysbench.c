@@ -0,0 +1,33 @@
+/* sysbench.c
+ *	Microbenchmark for the cost of a system call round trip.
+ *
+ *	Makes a large number of close() calls on a file descriptor that is
+ *	not open, which the kernel turns down without doing any real work,
+ *	and then halts. Run it with
+ *
+ *		nachos -x sysbench.coff
+ *
+ *	under two builds of Nachos and compare the wall-clock times. The
+ *	statistics printed at halt should be identical for both.
+ */
+
+#include "syscall.h"
+#include "stdlib.h"
+
+#define DEFAULT_COUNT	1000000
+
+int
+main(int argc, char** argv)
+{
+    int count = DEFAULT_COUNT;
+    int i;
+
+    if (argc > 1)
+	count = atoi(argv[1]);
+
+    for (i = 0; i < count; i++)
+	close(15);
+
+    halt();
+    /* not reached */
+}
@@ -10,6 +10,11 @@ import java.util.PriorityQueue;
  */
 public class Alarm {
     private PriorityQueue<ThreadTime> waitQueue = new PriorityQueue<ThreadTime>();
+    /**
+     * With a tickless timer, the time at which the current thread should be
+     * preempted, or <tt>Long.MAX_VALUE</tt> if it need not be.
+     */
+    private long preemptTime = Long.MAX_VALUE;
 
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
@@ -31,6 +36,11 @@ public class Alarm {
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
      * that should be run.
+     *
+     * <p>
+     * With a tickless timer, this also sets the next deadline: the next
+     * wakeup, or the end of a time slice if the threads now ready will have
+     * to share the CPU.
      */
     public void timerInterrupt() {
 
@@ -44,7 +54,14 @@ public class Alarm {
                 thread.ready();
             }
         }
-        KThread.currentThread().yield();
+        if (Machine.timer().isTickless()) {
+            if (KThread.moreThanOneRunnable())
+                preemptTime = currentTime + Machine.timer().randomSlice();
+            else
+                preemptTime = Long.MAX_VALUE;
+            setDeadline();
+        }
+        KThread.preempt();
         Machine.interrupt().restore(intStatus);
     }
 
@@ -68,10 +85,37 @@ public class Alarm {
         ThreadTime threadTime = new ThreadTime(thread, wakeTime);
         boolean intStatus = Machine.interrupt().disable();
         waitQueue.add(threadTime);
+        if (Machine.timer().isTickless())
+            setDeadline();
         thread.sleep();
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * With a tickless timer, make sure the current thread is preempted within
+     * a time slice. Called when a second thread becomes ready to run.
+     */
+    void preemptLater() {
+        if (!Machine.timer().isTickless() || preemptTime != Long.MAX_VALUE)
+            return;
+
+        preemptTime = Machine.timer().getTime()
+                + Machine.timer().randomSlice();
+        setDeadline();
+    }
+
+    /**
+     * Set the timer for whichever comes first, the next wakeup or the end of
+     * the time slice.
+     */
+    private void setDeadline() {
+        long deadline = preemptTime;
+        if (!waitQueue.isEmpty())
+            deadline = Math.min(deadline, waitQueue.peek().waketime);
+
+        Machine.timer().setDeadline(deadline);
+    }
+
     private class ThreadTime implements Comparable<ThreadTime> {
         private KThread thread;
         private long waketime;
@@ -0,0 +1,311 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Stats;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A fair-share scheduler. Each thread is given a share of the CPU in
+ * proportion to its weight, deterministically rather than by lottery.
+ *
+ * <p>
+ * Every thread has a virtual runtime: the ticks it has run, scaled down by
+ * its weight. A thread's weight doubles with each priority level, so a
+ * thread of priority 2 has its runtime charged at half the rate of a thread
+ * of priority 1, and gets twice as many ticks. The next thread to be dequeued
+ * is always the waiting thread with the least virtual runtime; ties go to the
+ * thread that has been waiting longest.
+ *
+ * <p>
+ * Runtime is charged when a thread starts waiting, from the kernel and user
+ * ticks <tt>KThread</tt> has counted for it since it last started waiting.
+ * A thread that has waited for a long time, such as one that sleeps between
+ * short bursts of work, is not allowed to fall more than
+ * <tt>sleeperCredit</tt> behind the threads that have been running. It still
+ * runs soon after it wakes up, but it cannot then keep the CPU to make up
+ * for all the time it slept.
+ *
+ * <p>
+ * A fair scheduler does not transfer priority.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * The default priority for a new thread. Do not change this value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The maximum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMaximum = 7;
+
+    /**
+     * How far, in virtual runtime, a waking thread may be behind the threads
+     * that have been running: half a time slice at the default priority.
+     */
+    public static final long sleeperCredit =
+            runtimeOf(Stats.TimerTicks / 2, priorityDefault);
+
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param    transferPriority    ignored. Fair schedulers do not
+     * transfer priority.
+     * @return a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getFairState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getFairState(thread).priority;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+                priority <= priorityMaximum);
+
+        FairState state = getFairState(thread);
+
+        // charge the ticks run so far at the old weight
+        state.charge();
+        state.priority = priority;
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMaximum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMinimum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    /**
+     * Return the virtual runtime of the specified thread, as of the last
+     * time it was charged.
+     *
+     * @param    thread    the thread.
+     * @return the virtual runtime of the thread.
+     */
+    public long getVirtualRuntime(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getFairState(thread).runtime;
+    }
+
+    /**
+     * Return the fair scheduling state of the specified thread.
+     *
+     * @param    thread    the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected FairState getFairState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new FairState(thread);
+
+        return (FairState) thread.schedulingState;
+    }
+
+    /**
+     * Return the virtual runtime charged for running <i>ticks</i> ticks at
+     * the specified priority. Weights are powers of two, so this is exact.
+     *
+     * @param    ticks    the ticks run.
+     * @param    priority    the priority they were run at.
+     * @return the virtual runtime to charge.
+     */
+    private static long runtimeOf(long ticks, int priority) {
+        return ticks << (priorityMaximum - priority);
+    }
+
+    /**
+     * Orders waiting threads by virtual runtime, then by arrival.
+     */
+    private static final Comparator<FairState> byRuntime =
+            new Comparator<FairState>() {
+                public int compare(FairState a, FairState b) {
+                    if (a.key != b.key)
+                        return (a.key < b.key) ? -1 : 1;
+                    if (a.arrival != b.arrival)
+                        return (a.arrival < b.arrival) ? -1 : 1;
+                    return 0;
+                }
+            };
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by virtual runtime, in a
+     * red-black tree.
+     */
+    protected class FairQueue extends ThreadQueue {
+        /**
+         * The waiting threads, least virtual runtime first.
+         */
+        private TreeSet<FairState> waitQueue =
+                new TreeSet<FairState>(byRuntime);
+        /**
+         * The greatest virtual runtime of any thread dequeued so far. Never
+         * decreases.
+         */
+        private long minRuntime = 0;
+        /**
+         * Numbers the threads in the order they start waiting.
+         */
+        private long arrivals = 0;
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            FairState state = getFairState(thread);
+            Lib.assertTrue(state.waitQueue == null);
+
+            state.charge();
+            if (state.runtime < minRuntime - sleeperCredit)
+                state.runtime = minRuntime - sleeperCredit;
+
+            // the key cannot change while the thread is in the tree
+            state.key = state.runtime;
+            state.arrival = arrivals++;
+            state.waitQueue = this;
+            waitQueue.add(state);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            FairState state = waitQueue.pollFirst();
+            if (state == null)
+                return null;
+
+            state.waitQueue = null;
+            if (state.key > minRuntime)
+                minRuntime = state.key;
+
+            return state.thread;
+        }
+
+        /**
+         * The specified thread has received exclusive access, without using
+         * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+         * threads are waiting for access.
+         */
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            Lib.assertTrue(waitQueue.isEmpty());
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (Iterator<FairState> i = waitQueue.iterator(); i.hasNext(); ) {
+                FairState state = i.next();
+                System.out.print(state.thread + "(" + state.key + ") ");
+            }
+        }
+    }
+
+    /**
+     * The scheduling state of a thread: its priority and its virtual
+     * runtime.
+     *
+     * @see    nachos.threads.KThread#schedulingState
+     */
+    protected class FairState {
+        /**
+         * Allocate a new <tt>FairState</tt> object and associate it with the
+         * specified thread.
+         *
+         * @param    thread    the thread this state belongs to.
+         */
+        public FairState(KThread thread) {
+            this.thread = thread;
+            charged = ticksRun();
+        }
+
+        /**
+         * Charge the ticks this thread has run since it was last charged to
+         * its virtual runtime, at its current priority.
+         */
+        private void charge() {
+            long ticks = ticksRun();
+            runtime += runtimeOf(ticks - charged, priority);
+            charged = ticks;
+        }
+
+        private long ticksRun() {
+            return thread.getKernelTicks() + thread.getUserTicks();
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The priority of the associated thread.
+         */
+        protected int priority = priorityDefault;
+        /**
+         * The virtual runtime of the associated thread, and its running
+         * ticks when it was last charged.
+         */
+        private long runtime = 0, charged;
+        /**
+         * The virtual runtime and arrival number the thread is sorted by in
+         * <tt>waitQueue</tt>.
+         */
+        private long key, arrival;
+        /**
+         * The queue this thread is waiting in, or <tt>null</tt>.
+         */
+        private FairQueue waitQueue = null;
+    }
+}
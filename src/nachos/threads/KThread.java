@@ -1,9 +1,14 @@
 package nachos.threads;
 
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
+import nachos.machine.Metrics;
 import nachos.machine.TCB;
 
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -36,6 +41,17 @@ public class KThread {
     private static final int statusRunning = 2;
     private static final int statusBlocked = 3;
     private static final int statusFinished = 4;
+    private static final int acctKernelTicks = 0;
+    private static final int acctUserTicks = 1;
+    private static final int acctReadyTicks = 2;
+    private static final int acctBlockedTicks = 3;
+    private static final int acctVoluntarySwitches = 4;
+    private static final int acctInvoluntarySwitches = 5;
+    private static final String[] acctNames = {
+            "kernelTicks", "userTicks", "readyTicks", "blockedTicks",
+            "voluntarySwitches", "involuntarySwitches"
+    };
+    private static final int maxFinishedAccounts = 64;
     /**
      * Number of times the KThread constructor was called.
      */
@@ -44,6 +60,41 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    /**
+     * The number of threads on the ready queue.
+     */
+    private static int numReady = 0;
+    /**
+     * Metrics over all threads: context switches, and how long threads wait
+     * on the ready queue.
+     */
+    private static Metrics.Counter contextSwitches = null;
+    private static Metrics.Histogram readyTicks = null;
+    /**
+     * The threads that have been forked and have not finished, and the main
+     * thread, in the order they started, for <tt>printAccounting()</tt>.
+     */
+    private static LinkedHashSet<KThread> liveThreads =
+            new LinkedHashSet<KThread>();
+    /**
+     * The accounting of the last <tt>maxFinishedAccounts</tt> threads to
+     * finish, oldest first, and the total of the <tt>numOlderAccounts</tt>
+     * threads that finished before them.
+     */
+    private static LinkedList<Accounting> finishedAccounts =
+            new LinkedList<Accounting>();
+    private static Accounting olderAccounts = new Accounting();
+    private static int numOlderAccounts = 0;
+    /**
+     * <tt>true</tt> if <tt>KThread.threadMetrics</tt> is set, so that each
+     * running thread has <tt>thread.<i>id</i>.<i>*</i></tt> metrics.
+     */
+    private static boolean threadMetrics = false;
+    /**
+     * <tt>true</tt> while the current thread is being preempted, so that the
+     * switch away from it is counted as involuntary.
+     */
+    private static boolean preempting = false;
     /**
      * Additional state used by schedulers.
      *
@@ -59,26 +110,53 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    /**
+     * The threads waiting in <tt>join()</tt> for this thread to finish, or
+     * <tt>null</tt> if no thread has joined it yet.
+     */
+    private ThreadQueue joinQueue = null;
     /**
      * Unique identifer for this thread. Used to deterministically compare
      * threads.
      */
     private int id = numCreated++;
+    private Accounting accounting;
+    /**
+     * The time this thread last started running, and the user ticks at that
+     * time; the time it was last made ready, or -1 if it is not ready; and
+     * the time it last went to sleep, or -1 if it is not blocked.
+     */
+    private long runStartTime = 0, runStartUserTime = 0;
+    private long readyTime = -1, blockedTime = -1;
 
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
      * create an idle thread as well.
      */
     public KThread() {
+        accounting = new Accounting();
+
         if (currentThread != null) {
             tcb = new TCB();
         } else {
+            threadMetrics = Config.getBoolean("KThread.threadMetrics", false);
+
+            Metrics metrics = Machine.metrics();
+            contextSwitches = metrics.counter("threads.contextSwitches");
+            readyTicks = metrics.histogram("threads.readyTicks");
+            metrics.gauge("threads.ready", new Metrics.Gauge() {
+                public long value() {
+                    return numReady;
+                }
+            });
+
             readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
             readyQueue.acquire(this);
 
             currentThread = this;
             tcb = TCB.currentTCB();
             name = "main";
+            started();
             restoreState();
 
             createIdleThread();
@@ -114,6 +192,8 @@ public class KThread {
      * other execution state are still in use. Instead, this thread will be
      * destroyed automatically by the next thread to run, when it is safe to
      * delete this thread.
+     * <p>
+     * Any threads waiting in <tt>join()</tt> for this thread are made ready.
      */
     public static void finish() {
         Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
@@ -125,12 +205,29 @@ public class KThread {
         Lib.assertTrue(toBeDestroyed == null);
         toBeDestroyed = currentThread;
 
+        if (currentThread.joinQueue != null) {
+            KThread joiner;
+            while ((joiner = currentThread.joinQueue.nextThread()) != null)
+                joiner.ready();
+        }
 
         currentThread.status = statusFinished;
+        currentThread.retireAccounting();
 
         sleep();
     }
 
+    /**
+     * Relinquish the CPU because the current thread's time slice is up,
+     * rather than by its own choice. The same as <tt>yield()</tt>, except
+     * that a switch to another thread counts as involuntary. Called by the
+     * timer interrupt handler.
+     */
+    static void preempt() {
+        preempting = true;
+        KThread.yield();
+    }
+
     /**
      * Relinquish the CPU if any other thread is ready to run. If so, put the
      * current thread on the ready queue, so that it will eventually be
@@ -177,8 +274,10 @@ public class KThread {
 
         Lib.assertTrue(Machine.interrupt().disabled());
 
-        if (currentThread.status != statusFinished)
+        if (currentThread.status != statusFinished) {
             currentThread.status = statusBlocked;
+            currentThread.blockedTime = Machine.timer().getTime();
+        }
 
         runNextThread();
     }
@@ -213,12 +312,29 @@ public class KThread {
      */
     private static void runNextThread() {
         KThread nextThread = readyQueue.nextThread();
-        if (nextThread == null)
+        if (nextThread != null) {
+            numReady--;
+        } else {
             nextThread = idleThread;
 
+            // nothing can become ready until an interrupt, so skip the ticks
+            // the idle thread would spend waiting for one
+            Machine.interrupt().idle();
+        }
+
         nextThread.run();
     }
 
+    /**
+     * Tests whether more than one thread, counting the current thread unless
+     * it is the idle thread, is ready to run.
+     *
+     * @return <tt>true</tt> if the current thread should be preempted.
+     */
+    static boolean moreThanOneRunnable() {
+        return numReady + (currentThread != idleThread ? 1 : 0) > 1;
+    }
+
     /**
      * Tests whether this module is working.
      */
@@ -227,6 +343,41 @@ public class KThread {
 
         new KThread(new PingTest(1)).setName("forked thread").fork();
         new PingTest(0).run();
+
+        int switches = Config.getInteger("KThread.benchmarkSwitches", 0);
+        if (switches > 0)
+            benchmarkSwitches(switches);
+    }
+
+    /**
+     * Time two threads yielding to each other for the specified number of
+     * context switches, and print how many switches they made per second of
+     * real time. Useful for comparing the <tt>TCB.handoff</tt> and
+     * <tt>TCB.spinCount</tt> settings.
+     *
+     * @param    switches    the number of context switches to time.
+     */
+    private static void benchmarkSwitches(final int switches) {
+        KThread partner = new KThread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < switches / 2; i++)
+                    KThread.yield();
+            }
+        }).setName("benchmark partner");
+
+        long start = System.nanoTime();
+
+        partner.fork();
+        for (int i = 0; i < switches / 2; i++)
+            KThread.yield();
+        partner.join();
+
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("*** " + switches + " context switches in "
+                + (elapsed / 1000000) + " ms, "
+                + (long) (switches * 1e9 / Math.max(elapsed, 1))
+                + " switches per second");
     }
 
     /**
@@ -304,6 +455,8 @@ public class KThread {
 
         boolean intStatus = Machine.interrupt().disable();
 
+        started();
+
         tcb.start(new Runnable() {
             public void run() {
                 runThread();
@@ -342,16 +495,31 @@ public class KThread {
         Lib.assertTrue(status != statusReady);
 
         status = statusReady;
-        if (this != idleThread)
+        if (this != idleThread) {
             readyQueue.waitForAccess(this);
+            numReady++;
+            readyTime = Machine.timer().getTime();
+
+            if (blockedTime != -1) {
+                accounting.values[acctBlockedTicks] += readyTime - blockedTime;
+                blockedTime = -1;
+            }
+
+            // a one-shot timer only preempts once there is a choice
+            if (this != currentThread && moreThanOneRunnable()
+                    && ThreadedKernel.alarm != null)
+                ThreadedKernel.alarm.preemptLater();
+        }
 
         Machine.autoGrader().readyThread(this);
     }
 
     /**
      * Waits for this thread to finish. If this thread is already finished,
-     * return immediately. This method must only be called once; the second
-     * call is not guaranteed to return. This thread must not be the current
+     * return immediately. Any number of threads may join the same thread;
+     * they sleep on its join queue, which this thread holds, so schedulers
+     * that transfer priority donate the joiners' priority to this thread.
+     * <tt>finish()</tt> wakes them all. This thread must not be the current
      * thread.
      */
     public void join() {
@@ -361,15 +529,15 @@ public class KThread {
 
         boolean intStatus = Machine.interrupt().disable();
         if (this.status != statusFinished) {
-            ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
-            waitQueue.acquire(this);
-            waitQueue.waitForAccess(currentThread);
-            while (this.status != statusFinished)
-                KThread.yield();
+            if (joinQueue == null) {
+                joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+                joinQueue.acquire(this);
+            }
 
+            joinQueue.waitForAccess(currentThread);
+            sleep();
         }
         Machine.interrupt().restore(intStatus);
-
     }
 
     /**
@@ -402,6 +570,16 @@ public class KThread {
         Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
                 + " to: " + toString());
 
+        if (currentThread != this) {
+            contextSwitches.increment();
+
+            if (preempting)
+                currentThread.accounting.values[acctInvoluntarySwitches]++;
+            else
+                currentThread.accounting.values[acctVoluntarySwitches]++;
+        }
+        preempting = false;
+
         currentThread = this;
 
         tcb.contextSwitch();
@@ -424,6 +602,14 @@ public class KThread {
 
         status = statusRunning;
 
+        runStartTime = Machine.timer().getTime();
+        runStartUserTime = Machine.timer().getUserTime();
+        if (readyTime != -1) {
+            readyTicks.record(runStartTime - readyTime);
+            accounting.values[acctReadyTicks] += runStartTime - readyTime;
+            readyTime = -1;
+        }
+
         if (toBeDestroyed != null) {
             toBeDestroyed.tcb.destroy();
             toBeDestroyed.tcb = null;
@@ -432,12 +618,188 @@ public class KThread {
     }
 
     /**
-     * Prepare this thread to give up the processor. Kernel threads do not
-     * need to do anything here.
+     * Prepare this thread to give up the processor. Kernel threads only
+     * account for the ticks they ran, in the kernel and in user mode.
      */
     protected void saveState() {
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(this == currentThread);
+
+        long userTicks = Machine.timer().getUserTime() - runStartUserTime;
+        accounting.values[acctUserTicks] += userTicks;
+        accounting.values[acctKernelTicks] += Machine.timer().getTime()
+                - runStartTime - userTicks;
+    }
+
+    /**
+     * Return the ticks this thread has spent running in the kernel, including
+     * the current run if this is the current thread.
+     *
+     * @return the kernel ticks of this thread.
+     */
+    public long getKernelTicks() {
+        long ticks = accounting.values[acctKernelTicks];
+        if (this == currentThread)
+            ticks += (Machine.timer().getTime() - runStartTime)
+                    - (Machine.timer().getUserTime() - runStartUserTime);
+        return ticks;
+    }
+
+    /**
+     * Return the ticks this thread has spent running a user program,
+     * including the current run if this is the current thread. Only
+     * <tt>UThread</tt>s run user programs.
+     *
+     * @return the user ticks of this thread.
+     */
+    public long getUserTicks() {
+        long ticks = accounting.values[acctUserTicks];
+        if (this == currentThread)
+            ticks += Machine.timer().getUserTime() - runStartUserTime;
+        return ticks;
+    }
+
+    /**
+     * Return the ticks this thread has spent on the ready queue, not
+     * counting the current wait if it is ready.
+     *
+     * @return the ready ticks of this thread.
+     */
+    public long getReadyTicks() {
+        return accounting.values[acctReadyTicks];
+    }
+
+    /**
+     * Return the ticks this thread has spent blocked, not counting the
+     * current wait if it is blocked.
+     *
+     * @return the blocked ticks of this thread.
+     */
+    public long getBlockedTicks() {
+        return accounting.values[acctBlockedTicks];
+    }
+
+    /**
+     * Return the number of times this thread gave up the processor to another
+     * thread by sleeping or yielding.
+     *
+     * @return the voluntary context switches of this thread.
+     */
+    public long getVoluntarySwitches() {
+        return accounting.values[acctVoluntarySwitches];
+    }
+
+    /**
+     * Return the number of times this thread was preempted by another thread
+     * when its time slice ran out.
+     *
+     * @return the involuntary context switches of this thread.
+     */
+    public long getInvoluntarySwitches() {
+        return accounting.values[acctInvoluntarySwitches];
+    }
+
+    /**
+     * Note that this thread has started, so that it is accounted for, and
+     * register its metrics if <tt>KThread.threadMetrics</tt> is set.
+     */
+    private void started() {
+        liveThreads.add(this);
+
+        if (!threadMetrics)
+            return;
+
+        Metrics metrics = Machine.metrics();
+        for (int i = 0; i < acctNames.length; i++) {
+            final long[] values = accounting.values;
+            final int index = i;
+
+            metrics.counter("thread." + id + "." + acctNames[i],
+                    new Metrics.Gauge() {
+                        public long value() {
+                            return values[index];
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Move the accounting of this thread, which is finishing, to the
+     * finished threads, folding the oldest of them into the total once
+     * there are too many, and unregister its metrics. The accounting object
+     * is still charged for the rest of this thread's last run.
+     */
+    private void retireAccounting() {
+        liveThreads.remove(this);
+
+        accounting.name = toString();
+        finishedAccounts.add(accounting);
+
+        if (finishedAccounts.size() > maxFinishedAccounts) {
+            Accounting oldest = finishedAccounts.removeFirst();
+            for (int i = 0; i < acctNames.length; i++)
+                olderAccounts.values[i] += oldest.values[i];
+            numOlderAccounts++;
+        }
+
+        if (threadMetrics) {
+            Metrics metrics = Machine.metrics();
+            for (int i = 0; i < acctNames.length; i++)
+                metrics.remove("thread." + id + "." + acctNames[i]);
+        }
+    }
+
+    /**
+     * Print the accounting of the threads, if
+     * <tt>KThread.printAccounting</tt> is set: a total for the threads that
+     * finished longest ago, then each of the last threads to finish, then
+     * each thread still running. Called when the kernel terminates.
+     */
+    public static void printAccounting() {
+        if (!Config.getBoolean("KThread.printAccounting", false))
+            return;
+
+        System.out.print("Threads: kernel/user/ready/blocked ticks, "
+                + "voluntary/involuntary switches\n");
+
+        if (numOlderAccounts > 0) {
+            printAccount("(" + numOlderAccounts + " older threads)",
+                    olderAccounts.values[acctKernelTicks],
+                    olderAccounts.values[acctUserTicks], olderAccounts);
+        }
+
+        for (Accounting account : finishedAccounts) {
+            printAccount(account.name, account.values[acctKernelTicks],
+                    account.values[acctUserTicks], account);
+        }
+
+        for (KThread thread : liveThreads) {
+            printAccount(thread.toString(), thread.getKernelTicks(),
+                    thread.getUserTicks(), thread.accounting);
+        }
+    }
+
+    private static void printAccount(String name, long kernelTicks,
+                                     long userTicks, Accounting account) {
+        System.out.print("\t" + name + ": "
+                + kernelTicks + "/" + userTicks + "/"
+                + account.values[acctReadyTicks] + "/"
+                + account.values[acctBlockedTicks] + ", "
+                + account.values[acctVoluntarySwitches] + "/"
+                + account.values[acctInvoluntarySwitches] + "\n");
+    }
+
+    /**
+     * Where a thread's time went, indexed by the <tt>acct</tt> constants.
+     * Kept apart from the thread, so that a finished thread's accounting
+     * can be reported after the thread itself is destroyed.
+     */
+    private static class Accounting {
+        long[] values = new long[acctNames.length];
+        /**
+         * The full name of the thread, set when it finishes.
+         */
+        String name = null;
     }
 
     private static class PingTest implements Runnable {
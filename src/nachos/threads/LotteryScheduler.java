@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,14 +23,33 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, one
+ * slot per thread, so that adding or removing a thread, changing its tickets,
+ * and drawing the winner all take time logarithmic in the number of waiting
+ * threads. Draws use <tt>Lib.random()</tt>, so they repeat with the seed.
  */
 public class LotteryScheduler extends PriorityScheduler {
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
     /**
      * Allocate a new lottery scheduler.
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +59,433 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+        return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getLotteryState(thread).tickets;
+    }
+
+    /**
+     * Return the tickets of the specified thread plus all the tickets
+     * transferred to it, or <tt>Integer.MAX_VALUE</tt> if that is more.
+     */
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return (int) Math.min(getLotteryState(thread).effectiveTickets,
+                Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+                priority <= priorityMaximum);
+
+        getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMaximum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMinimum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new LotteryState(thread);
+
+        return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * Stamps each thread reached while passing on a change in tickets, so
+     * that a cycle of threads waiting for each other is only gone around
+     * once.
+     */
+    private int transfers = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+        /**
+         * <tt>true</tt> if this queue should transfer tickets from waiting
+         * threads to the owning thread.
+         */
+        public boolean transferPriority;
+        /**
+         * The thread that has access, or <tt>null</tt> if there is none.
+         */
+        private LotteryState owner = null;
+        /**
+         * The waiter in each slot, or <tt>null</tt> if the slot is free, and
+         * the tickets it had when last added to the tree.
+         */
+        private Waiter[] slots = new Waiter[initialSlots];
+        private long[] weights = new long[initialSlots];
+        /**
+         * A Fenwick tree over <tt>weights</tt>: <tt>tree[i]</tt>, counting
+         * from 1, is the sum of the <i>i</i> &amp; -<i>i</i> weights ending
+         * at slot <i>i</i> - 1.
+         */
+        private long[] tree = new long[initialSlots + 1];
+        /**
+         * The free slots below <tt>used</tt>, as a stack, and the number of
+         * slots ever used.
+         */
+        private int[] freeSlots = new int[initialSlots];
+        private int numFree = 0, used = 0;
+        /**
+         * The total tickets of the waiting threads.
+         */
+        private long total = 0;
+        private int numWaiting = 0;
+
+        LotteryQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            getLotteryState(thread).waitForAccess(this);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            getLotteryState(thread).acquire(this);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            // the owner loses every ticket here, the winner's included
+            release();
+
+            if (numWaiting == 0)
+                return null;
+
+            Waiter waiter = slots[draw()];
+            LotteryState next = waiter.state;
+
+            remove(waiter);
+            next.stopWaiting(waiter);
+            next.acquire(this);
+
+            return next.thread;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < used; i++) {
+                if (slots[i] != null)
+                    System.out.print(slots[i].state.thread + " ("
+                            + weights[i] + ") ");
+            }
+        }
+
+        /**
+         * Take access away from the owning thread, if there is one.
+         */
+        private void release() {
+            if (owner != null) {
+                LotteryState previous = owner;
+                owner = null;
+                previous.release(this);
+            }
+        }
+
+        /**
+         * Pick a ticket at random and return the slot holding it, by walking
+         * down the tree.
+         */
+        private int draw() {
+            long ticket = (total <= Integer.MAX_VALUE)
+                    ? Lib.random((int) total)
+                    : (long) (Lib.random() * total);
+
+            int position = 0;
+            for (int step = Integer.highestOneBit(tree.length - 1); step > 0;
+                 step >>= 1) {
+                int next = position + step;
+                if (next < tree.length && tree[next] <= ticket) {
+                    position = next;
+                    ticket -= tree[next];
+                }
+            }
+
+            return position;
+        }
+
+        private void add(Waiter waiter, long tickets) {
+            int slot;
+            if (numFree > 0) {
+                slot = freeSlots[--numFree];
+            } else {
+                if (used == slots.length)
+                    grow();
+                slot = used++;
+            }
+
+            waiter.slot = slot;
+            slots[slot] = waiter;
+            weights[slot] = tickets;
+            update(slot, tickets);
+
+            numWaiting++;
+        }
+
+        private void remove(Waiter waiter) {
+            int slot = waiter.slot;
+
+            update(slot, -weights[slot]);
+            weights[slot] = 0;
+            slots[slot] = null;
+            freeSlots[numFree++] = slot;
+
+            numWaiting--;
+        }
+
+        /**
+         * Change the tickets of a waiter.
+         */
+        private void change(Waiter waiter, long delta) {
+            weights[waiter.slot] += delta;
+            update(waiter.slot, delta);
+        }
+
+        private void update(int slot, long delta) {
+            total += delta;
+
+            for (int i = slot + 1; i < tree.length; i += i & -i)
+                tree[i] += delta;
+        }
+
+        /**
+         * Double the number of slots, and rebuild the tree in linear time.
+         */
+        private void grow() {
+            int length = slots.length * 2;
+
+            Waiter[] newSlots = new Waiter[length];
+            System.arraycopy(slots, 0, newSlots, 0, used);
+            slots = newSlots;
+
+            long[] newWeights = new long[length];
+            System.arraycopy(weights, 0, newWeights, 0, used);
+            weights = newWeights;
+
+            int[] newFreeSlots = new int[length];
+            System.arraycopy(freeSlots, 0, newFreeSlots, 0, numFree);
+            freeSlots = newFreeSlots;
+
+            tree = new long[length + 1];
+            for (int i = 1; i <= length; i++) {
+                tree[i] += weights[i - 1];
+                int parent = i + (i & -i);
+                if (parent <= length)
+                    tree[parent] += tree[i];
+            }
+        }
+    }
+
+    private static final int initialSlots = 8;
+
+    /**
+     * A thread waiting in a lottery queue, in a slot of its tree.
+     */
+    private static class Waiter {
+        LotteryState state;
+        LotteryQueue queue;
+        int slot;
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets, its tickets including
+     * those transferred to it, the queues it waits on, and the queues
+     * transferring tickets to it.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+        /**
+         * Allocate a new <tt>LotteryState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param	thread	the thread this state belongs to.
+         */
+        public LotteryState(KThread thread) {
+            this.thread = thread;
+
+            setTickets(priorityDefault);
+        }
+
+        /**
+         * Set the tickets of the associated thread.
+         *
+         * @param	tickets	the new number of tickets.
+         */
+        public void setTickets(int tickets) {
+            long delta = (long) tickets - this.tickets;
+            this.tickets = tickets;
+
+            transfer(delta);
+        }
+
+        /**
+         * Called when the associated thread starts waiting for access to
+         * <tt>waitQueue</tt>.
+         *
+         * @param	waitQueue	the queue that the associated thread is
+         *				now waiting on.
+         */
+        public void waitForAccess(LotteryQueue waitQueue) {
+            Waiter waiter = spare;
+            if (waiter == null)
+                waiter = new Waiter();
+            spare = null;
+
+            waiter.state = this;
+            waiter.queue = waitQueue;
+
+            waiting.add(waiter);
+            waitQueue.add(waiter, effectiveTickets);
+
+            if (waitQueue.transferPriority && waitQueue.owner != null)
+                waitQueue.owner.transfer(effectiveTickets);
+        }
+
+        /**
+         * Called when the associated thread gets access to
+         * <tt>waitQueue</tt>, either from <tt>acquire()</tt> or from
+         * <tt>nextThread()</tt>.
+         *
+         * @param	waitQueue	the queue the associated thread now holds.
+         */
+        public void acquire(LotteryQueue waitQueue) {
+            waitQueue.release();
+            waitQueue.owner = this;
+
+            if (waitQueue.transferPriority) {
+                owned.add(waitQueue);
+                transfer(waitQueue.total);
+            }
+        }
+
+        private void release(LotteryQueue waitQueue) {
+            if (owned.remove(waitQueue))
+                transfer(-waitQueue.total);
+        }
+
+        private void stopWaiting(Waiter waiter) {
+            waiting.remove(waiter);
+
+            waiter.state = null;
+            waiter.queue = null;
+            spare = waiter;
+        }
+
+        /**
+         * Add <i>delta</i> to the effective tickets of the associated thread,
+         * and pass it on along the chain of threads holding the queues that
+         * each waits on. The chain is followed in a loop, since lock chains
+         * can be long, and stops if it comes back around to a thread.
+         *
+         * @param	delta	the change in tickets.
+         */
+        private void transfer(long delta) {
+            if (delta == 0)
+                return;
+
+            int stamp = ++transfers;
+
+            LotteryState state = this;
+            while (state != null && state.stamp != stamp) {
+                state.stamp = stamp;
+                state.effectiveTickets += delta;
+
+                LotteryState next = null;
+                for (int i = 0; i < state.waiting.size(); i++) {
+                    Waiter waiter = state.waiting.get(i);
+                    LotteryQueue waitQueue = waiter.queue;
+
+                    waitQueue.change(waiter, delta);
+
+                    if (waitQueue.transferPriority &&
+                            waitQueue.owner != null) {
+                        if (next != null)
+                            next.transfer(delta);
+                        next = waitQueue.owner;
+                    }
+                }
+
+                state = next;
+            }
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The tickets of the associated thread, and those plus the tickets
+         * of every thread waiting on a queue it holds that transfers them.
+         */
+        protected int tickets = 0;
+        protected long effectiveTickets = 0;
+        /**
+         * Where this thread is waiting, one waiter for each queue.
+         */
+        private ArrayList<Waiter> waiting = new ArrayList<Waiter>(1);
+        /**
+         * The queues that transfer tickets to this thread because it has
+         * access to them.
+         */
+        private ArrayList<LotteryQueue> owned =
+                new ArrayList<LotteryQueue>(1);
+        /**
+         * A waiter left over from the last time this thread got access, to
+         * reuse instead of allocating another.
+         */
+        private Waiter spare = null;
+        private int stamp = 0;
     }
 }
@@ -3,8 +3,7 @@ package nachos.threads;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 
-import java.util.Hashtable;
-import java.util.Map;
+import java.util.ArrayList;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -25,6 +24,12 @@ import java.util.Map;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps one FIFO list of waiting threads per priority, ordered by
+ * arrival, and a bitmap of the priorities whose lists are not empty, so that
+ * the next thread is found in constant time. A thread is listed under its
+ * effective priority, which is kept up to date as priority is donated.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -40,8 +45,6 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;
 
-    private Hashtable<KThread, Integer> theadTable = new Hashtable<>();
-
     /**
      * Allocate a new priority scheduler.
      */
@@ -87,8 +90,10 @@ public class PriorityScheduler extends Scheduler {
         KThread thread = KThread.currentThread();
 
         int priority = getPriority(thread);
-        if (priority == priorityMaximum)
+        if (priority == priorityMaximum) {
+            Machine.interrupt().restore(intStatus);
             return false;
+        }
 
         setPriority(thread, priority + 1);
 
@@ -102,8 +107,10 @@ public class PriorityScheduler extends Scheduler {
         KThread thread = KThread.currentThread();
 
         int priority = getPriority(thread);
-        if (priority == priorityMinimum)
+        if (priority == priorityMinimum) {
+            Machine.interrupt().restore(intStatus);
             return false;
+        }
 
         setPriority(thread, priority - 1);
 
@@ -133,7 +140,26 @@ public class PriorityScheduler extends Scheduler {
          * threads to the owning thread.
          */
         public boolean transferPriority;
-
+        /**
+         * The thread that has access, or <tt>null</tt> if there is none.
+         */
+        private ThreadState owner = null;
+        /**
+         * The first and last waiting thread at each effective priority.
+         * Each list is in the order the threads arrived.
+         */
+        private Waiter[] heads = new Waiter[priorityMaximum + 1];
+        private Waiter[] tails = new Waiter[priorityMaximum + 1];
+        /**
+         * Bit <i>i</i> is set if and only if some thread is waiting with
+         * effective priority <i>i</i>.
+         */
+        private int levels = 0;
+        /**
+         * The number of threads that have ever waited, used to order them by
+         * arrival.
+         */
+        private long arrivals = 0;
 
         PriorityQueue(boolean transferPriority) {
             this.transferPriority = transferPriority;
@@ -151,9 +177,20 @@ public class PriorityScheduler extends Scheduler {
 
         public KThread nextThread() {
             Lib.assertTrue(Machine.interrupt().disabled());
-            // implement me
 
-            return pickNextThread().thread;
+            if (levels == 0) {
+                release();
+                return null;
+            }
+
+            Waiter waiter = heads[topLevel()];
+            ThreadState next = waiter.state;
+
+            unlink(waiter);
+            next.stopWaiting(waiter);
+            next.acquire(this);
+
+            return next.thread;
         }
 
         /**
@@ -164,26 +201,106 @@ public class PriorityScheduler extends Scheduler {
          * return.
          */
         protected ThreadState pickNextThread() {
-            // implement me
-            int max = priorityMinimum;
-            KThread next = null;
-            for (Map.Entry<KThread, Integer> entry : theadTable.entrySet()) {
-                if (entry.getValue() > max) {
-                    max = entry.getValue();
-                    next = entry.getKey();
-                }
-            }
-            ThreadState threadState = new ThreadState(next);
-            threadState.priority = max;
-            return threadState;
+            if (levels == 0)
+                return null;
+
+            return heads[topLevel()].state;
         }
 
         public void print() {
             Lib.assertTrue(Machine.interrupt().disabled());
-            // implement me (if you want)
+
+            for (int level = priorityMaximum; level >= priorityMinimum;
+                 level--) {
+                for (Waiter waiter = heads[level]; waiter != null;
+                     waiter = waiter.next)
+                    System.out.print(waiter.state.thread + " ");
+            }
+        }
+
+        /**
+         * Return the highest effective priority of the waiting threads, or
+         * <tt>priorityMinimum</tt> if none are waiting.
+         */
+        private int getDonatedPriority() {
+            return (levels == 0) ? priorityMinimum : topLevel();
+        }
+
+        private int topLevel() {
+            return 31 - Integer.numberOfLeadingZeros(levels);
+        }
+
+        /**
+         * Take access away from the owning thread, if there is one.
+         */
+        private void release() {
+            if (owner != null) {
+                ThreadState previous = owner;
+                owner = null;
+                previous.release(this);
+            }
+        }
+
+        /**
+         * Add a waiter to the list for the specified priority, after the
+         * waiters that arrived before it. New waiters arrived last, so this
+         * only searches when a waiter moves to another priority.
+         */
+        private void link(Waiter waiter, int level) {
+            waiter.level = level;
+
+            Waiter previous = tails[level];
+            while (previous != null && previous.arrival > waiter.arrival)
+                previous = previous.previous;
+
+            waiter.previous = previous;
+            waiter.next = (previous == null) ? heads[level] : previous.next;
+
+            if (waiter.previous == null)
+                heads[level] = waiter;
+            else
+                waiter.previous.next = waiter;
+
+            if (waiter.next == null)
+                tails[level] = waiter;
+            else
+                waiter.next.previous = waiter;
+
+            levels |= 1 << level;
+        }
+
+        private void unlink(Waiter waiter) {
+            int level = waiter.level;
+
+            if (waiter.previous == null)
+                heads[level] = waiter.next;
+            else
+                waiter.previous.next = waiter.next;
+
+            if (waiter.next == null)
+                tails[level] = waiter.previous;
+            else
+                waiter.next.previous = waiter.previous;
+
+            if (heads[level] == null)
+                levels &= ~(1 << level);
+
+            waiter.previous = waiter.next = null;
         }
     }
 
+    /**
+     * A thread waiting in a priority queue, linked into the list for its
+     * effective priority.
+     */
+    private static class Waiter {
+        ThreadState state;
+        PriorityQueue queue;
+        long arrival;
+        int level;
+        Waiter previous, next;
+    }
+
     /**
      * The scheduling state of a thread. This should include the thread's
      * priority, its effective priority, any objects it owns, and the queue
@@ -200,6 +317,26 @@ public class PriorityScheduler extends Scheduler {
          * The priority of the associated thread.
          */
         protected int priority;
+        /**
+         * The priority of the associated thread, or the highest priority
+         * donated to it, whichever is greater.
+         */
+        protected int effectivePriority;
+        /**
+         * Where this thread is waiting, one waiter for each queue.
+         */
+        private ArrayList<Waiter> waiting = new ArrayList<Waiter>(1);
+        /**
+         * The queues that transfer priority to this thread because it has
+         * access to them.
+         */
+        private ArrayList<PriorityQueue> owned =
+                new ArrayList<PriorityQueue>(1);
+        /**
+         * A waiter left over from the last time this thread got access, to
+         * reuse instead of allocating another.
+         */
+        private Waiter spare = null;
 
         /**
          * Allocate a new <tt>ThreadState</tt> object and associate it with the
@@ -233,8 +370,7 @@ public class PriorityScheduler extends Scheduler {
 
             this.priority = priority;
 
-            // implement me
-            theadTable.put(this.thread, this.priority);
+            updateEffectivePriority();
         }
 
         /**
@@ -243,8 +379,7 @@ public class PriorityScheduler extends Scheduler {
          * @return the effective priority of the associated thread.
          */
         public int getEffectivePriority() {
-            // implement me
-            return theadTable.get(this.thread);
+            return effectivePriority;
         }
 
         /**
@@ -259,17 +394,20 @@ public class PriorityScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#waitForAccess
          */
         public void waitForAccess(PriorityQueue waitQueue) {
-            // implement me
-            if (waitQueue.transferPriority) {
-                KThread currentThread = KThread.currentThread();
-                if (this.priority > theadTable.get(currentThread)) {
-                    theadTable.put(currentThread, this.priority);
-                    if (this.priority > priorityMinimum) {
-                        --this.priority;
-                        theadTable.put(this.thread, this.priority);
-                    }
-                }
-            }
+            Waiter waiter = spare;
+            if (waiter == null)
+                waiter = new Waiter();
+            spare = null;
+
+            waiter.state = this;
+            waiter.queue = waitQueue;
+            waiter.arrival = waitQueue.arrivals++;
+
+            waiting.add(waiter);
+            waitQueue.link(waiter, effectivePriority);
+
+            if (donationChanges(waitQueue, -1, effectivePriority))
+                waitQueue.owner.updateEffectivePriority();
         }
 
         /**
@@ -283,9 +421,106 @@ public class PriorityScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            // implement me
-            Machine.autoGrader().runningThread(this.thread);
+            waitQueue.release();
+            waitQueue.owner = this;
+
+            if (waitQueue.transferPriority) {
+                owned.add(waitQueue);
+                updateEffectivePriority();
+            }
+        }
+
+        /**
+         * Called when the associated thread loses access to
+         * <tt>waitQueue</tt>, so that it no longer receives priority from it.
+         */
+        private void release(PriorityQueue waitQueue) {
+            if (owned.remove(waitQueue))
+                updateEffectivePriority();
+        }
+
+        /**
+         * Called when the associated thread is taken off <tt>waiter</tt>'s
+         * queue by <tt>nextThread()</tt>.
+         */
+        private void stopWaiting(Waiter waiter) {
+            waiting.remove(waiter);
+
+            waiter.state = null;
+            waiter.queue = null;
+            spare = waiter;
+        }
+
+        /**
+         * Recompute the effective priority, and pass any change on along the
+         * chain of threads holding the queues that this thread waits on. The
+         * chain is followed in a loop, since lock chains can be long.
+         */
+        private void updateEffectivePriority() {
+            ThreadState state = this;
+            while (state != null)
+                state = state.updateOwnEffectivePriority();
+        }
+
+        /**
+         * Recompute the effective priority of this thread alone. It only
+         * depends on the priority and the top waiting level of each queue
+         * this thread holds, so this takes time in the number of queues held,
+         * not the number of waiters. If it changed, move this thread to its
+         * new priority in every queue it waits on.
+         *
+         * @return the owner of a queue this thread waits on, whose effective
+         * priority this change affects and must be updated next, or
+         * <tt>null</tt> if there is none. If there are several, all but one
+         * are updated before returning.
+         */
+        private ThreadState updateOwnEffectivePriority() {
+            int effective = priority;
+            for (int i = 0; i < owned.size(); i++)
+                effective = Math.max(effective,
+                        owned.get(i).getDonatedPriority());
+
+            if (effective == effectivePriority)
+                return null;
+
+            int previous = effectivePriority;
+            effectivePriority = effective;
+
+            ThreadState next = null;
+            for (int i = 0; i < waiting.size(); i++) {
+                Waiter waiter = waiting.get(i);
+                PriorityQueue waitQueue = waiter.queue;
+
+                waitQueue.unlink(waiter);
+                waitQueue.link(waiter, effective);
+
+                if (donationChanges(waitQueue, previous, effective)) {
+                    if (next != null)
+                        next.updateEffectivePriority();
+                    next = waitQueue.owner;
+                }
+            }
 
+            return next;
         }
     }
+
+    /**
+     * Return <tt>true</tt> if a waiter in the specified queue moving from one
+     * effective priority to another can change the effective priority of
+     * the queue's owner. It can if the queue transfers priority and the
+     * waiter either rises above the owner or falls from the owner's level.
+     *
+     * @param waitQueue the queue.
+     * @param from      the waiter's old priority, or -1 if it just arrived.
+     * @param to        the waiter's new priority.
+     */
+    private static boolean donationChanges(PriorityQueue waitQueue, int from,
+                                           int to) {
+        if (!waitQueue.transferPriority || waitQueue.owner == null)
+            return false;
+
+        int owner = waitQueue.owner.effectivePriority;
+        return (to > owner || (from == owner && to < from));
+    }
 }
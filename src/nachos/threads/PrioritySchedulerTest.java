@@ -389,4 +389,103 @@ public final class PrioritySchedulerTest {
 
     }
 
+    /**
+     * Stress priority donation and time it. <i>chainLength</i> threads each
+     * hold a lock and wait for the lock held by the next, and then
+     * <i>waiters</i> threads of random priority wait on the first lock, change
+     * their priorities, and finally get the lock one at a time. Checks that
+     * the last thread in the chain, and then each new holder of the first
+     * lock, has the highest priority still waiting.
+     */
+    public static void donationBenchmark(int chainLength, int waiters) {
+        final Scheduler s = new PriorityScheduler();
+
+        final Runnable dummyRunnable = new Runnable() {
+            public void run() {
+                // do nothing
+            }
+        };
+
+        final boolean intStatus = Machine.interrupt().disable();
+
+        ThreadQueue[] locks = new ThreadQueue[chainLength];
+        KThread[] holders = new KThread[chainLength];
+        for (int i = 0; i < chainLength; i++) {
+            locks[i] = s.newThreadQueue(true);
+            holders[i] = new KThread(dummyRunnable);
+            s.setPriority(holders[i], PriorityScheduler.priorityMinimum);
+            locks[i].acquire(holders[i]);
+        }
+
+        KThread[] waiting = new KThread[waiters];
+        int[] priorities = new int[waiters];
+        for (int i = 0; i < waiters; i++) {
+            waiting[i] = new KThread(dummyRunnable);
+            priorities[i] = Lib.random(PriorityScheduler.priorityMaximum + 1);
+            s.setPriority(waiting[i], priorities[i]);
+        }
+
+        KThread last = holders[chainLength - 1];
+        int operations = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i + 1 < chainLength; i++) {
+            locks[i + 1].waitForAccess(holders[i]);
+            operations++;
+        }
+
+        int highest = PriorityScheduler.priorityMinimum;
+        for (int i = 0; i < waiters; i++) {
+            locks[0].waitForAccess(waiting[i]);
+            operations++;
+
+            highest = Math.max(highest, priorities[i]);
+            Lib.assertTrue(s.getEffectivePriority(last) == highest,
+                    "Priority should be donated down the whole chain.");
+        }
+
+        // counts[p] is the number of waiters of priority p still waiting
+        int[] counts = new int[PriorityScheduler.priorityMaximum + 1];
+        for (int i = 0; i < waiters; i++) {
+            s.setPriority(waiting[i], priorities[i] =
+                    Lib.random(PriorityScheduler.priorityMaximum + 1));
+            operations++;
+            counts[priorities[i]]++;
+        }
+
+        Lib.assertTrue(s.getEffectivePriority(last) ==
+                        highestWaiting(counts),
+                "Donation should follow priority changes.");
+
+        for (int i = 0; i < waiters; i++) {
+            KThread next = locks[0].nextThread();
+            operations++;
+
+            int priority = s.getPriority(next);
+            Lib.assertTrue(priority == highestWaiting(counts),
+                    "The highest priority waiter should get the lock.");
+            counts[priority]--;
+
+            Lib.assertTrue(s.getEffectivePriority(next) ==
+                            Math.max(priority, highestWaiting(counts)),
+                    "The new holder should get the remaining donation.");
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        Machine.interrupt().restore(intStatus);
+
+        System.out.println("donationBenchmark: " + operations
+                + " operations on a chain of " + chainLength + " locks with "
+                + waiters + " waiters in " + (elapsed / 1000000) + " ms");
+    }
+
+    private static int highestWaiting(int[] counts) {
+        for (int priority = counts.length - 1; priority > 0; priority--) {
+            if (counts[priority] > 0)
+                return priority;
+        }
+        return PriorityScheduler.priorityMinimum;
+    }
+
 }
@@ -85,6 +85,7 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        KThread.printAccounting();
         Machine.halt();
     }
 }
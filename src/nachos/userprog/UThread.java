@@ -24,6 +24,10 @@ public class UThread extends KThread {
      * The process to which this thread belongs.
      */
     public UserProcess process;
+    /**
+     * Whether this thread continues from saved registers.
+     */
+    private boolean resumed = false;
 
     /**
      * Allocate a new UThread.
@@ -40,8 +44,22 @@ public class UThread extends KThread {
         this.process = process;
     }
 
+    /**
+     * Allocate a new UThread that continues from the specified user
+     * registers instead of starting the program, as when a process is
+     * restored from a machine snapshot.
+     */
+    public UThread(UserProcess process, int[] userRegisters) {
+        this(process);
+
+        System.arraycopy(userRegisters, 0, this.userRegisters, 0,
+                Processor.numUserRegisters);
+        resumed = true;
+    }
+
     private void runProgram() {
-        process.initRegisters();
+        if (!resumed)
+            process.initRegisters();
         process.restoreState();
 
         Machine.processor().run();
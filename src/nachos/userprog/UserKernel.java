@@ -8,6 +8,9 @@ import nachos.threads.KThread;
 import nachos.threads.Semaphore;
 import nachos.threads.ThreadedKernel;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.LinkedList;
 
 /**
@@ -112,27 +115,75 @@ public class UserKernel extends ThreadedKernel {
 
         UserProcess process = ((UThread) KThread.currentThread()).process;
         int cause = Machine.processor().readRegister(Processor.regCause);
+        process.countException(cause);
         process.handleException(cause);
     }
 
     /**
      * Start running user programs, by creating a process and running a shell
      * program in it. The name of the shell program it must run is returned by
-     * <tt>Machine.getShellProgramName()</tt>.
+     * <tt>Machine.getShellProgramName()</tt>. If Nachos was started from a
+     * machine snapshot, the saved process continues instead.
      *
      * @see nachos.machine.Machine#getShellProgramName
      */
     public void run() {
         super.run();
 
-        UserProcess process = UserProcess.newUserProcess();
+        if (!Machine.restoreSnapshot()) {
+            UserProcess process = UserProcess.newUserProcess();
 
-        String shellProgram = Machine.getShellProgramName();
-        Lib.assertTrue(process.execute(shellProgram, new String[]{}));
+            String shellProgram = Machine.getShellProgramName();
+            Lib.assertTrue(process.execute(shellProgram, new String[]{}));
+        }
 
         KThread.currentThread().finish();
     }
 
+    /**
+     * Save the free page list and the running process for a machine
+     * snapshot. Only the process whose thread is running is saved, so the
+     * snapshot is put off while a kernel thread runs, and while other
+     * processes exist that could not be resumed with it.
+     *
+     * @param out the snapshot being written.
+     * @return <tt>true</tt> if the state was saved.
+     */
+    public boolean saveSnapshot(DataOutput out) throws IOException {
+        UserProcess process = currentProcess();
+        if (process == null || !process.canSaveSnapshot())
+            return false;
+
+        out.writeInt(newProcessID);
+        out.writeInt(freePages.size());
+        for (int ppn : freePages)
+            out.writeInt(ppn);
+
+        out.writeUTF(KThread.currentThread().getName());
+        process.saveSnapshot(out);
+
+        return true;
+    }
+
+    /**
+     * Restore the state saved by <tt>saveSnapshot()</tt>, and continue the
+     * saved process in a new thread.
+     *
+     * @param in the snapshot being read.
+     */
+    public void restoreSnapshot(DataInput in) throws IOException {
+        UserProcess process = UserProcess.newUserProcess();
+
+        newProcessID = in.readInt();
+        freePages.clear();
+        for (int count = in.readInt(); count > 0; count--)
+            freePages.add(in.readInt());
+
+        String name = in.readUTF();
+        process.restoreSnapshot(in);
+        process.resume(name);
+    }
+
     /**
      * Terminate this kernel. Never returns.
      */
@@ -5,7 +5,10 @@ import nachos.threads.KThread;
 import nachos.threads.Semaphore;
 import nachos.threads.ThreadedKernel;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.EOFException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -33,6 +36,21 @@ public class UserProcess {
             syscallWrite = 7,
             syscallClose = 8,
             syscallUnlink = 9;
+    private static final String[] syscallNames = {
+            "halt", "exit", "exec", "join", "create", "open", "read", "write",
+            "close", "unlink"
+    };
+    /**
+     * Metrics over all processes: calls to each syscall, and the ticks spent
+     * handling syscalls that return.
+     */
+    private static Metrics.Counter[] syscallCounts =
+            new Metrics.Counter[syscallNames.length];
+    private static Metrics.Histogram syscallTicks = null;
+    /**
+     * The number of processes that have started running and not yet exited.
+     */
+    private static int numRunning = 0;
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
 
@@ -60,12 +78,21 @@ public class UserProcess {
     private List<UserProcess> childList = new ArrayList<>();
     private OpenFile[] fileTable;
     private Semaphore joinSem;
+    /**
+     * <tt>true</tt> from when this process starts running until it exits.
+     */
+    private boolean running = false;
+    /**
+     * The syscalls and other exceptions of this process.
+     */
+    private Metrics.Counter syscallCount, faultCount;
 
     /**
      * Allocate a new process.
      */
     public UserProcess() {
         id = UserKernel.getNewProcessID();
+        createMetrics();
 
         int numPhysPages = Machine.processor().getNumPhysPages();
         pageTable = new TranslationEntry[numPhysPages];
@@ -102,6 +129,8 @@ public class UserProcess {
         if (!load(name, args))
             return false;
 
+        running = true;
+        numRunning++;
         new UThread(this).setName(name).fork();
 
         return true;
@@ -181,14 +210,15 @@ public class UserProcess {
                                  int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+        long memorySize = (long) Machine.processor().getNumPhysPages() * pageSize;
 
         // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        if (vaddr < 0 || vaddr >= memorySize)
             return 0;
 
-        int amount = Math.min(length, memory.length - vaddr);
-        System.arraycopy(memory, vaddr, data, offset, amount);
+        int amount = (int) Math.min(length, memorySize - vaddr);
+        memory.read(vaddr, data, offset, amount);
 
         return amount;
     }
@@ -224,14 +254,15 @@ public class UserProcess {
                                   int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+        long memorySize = (long) Machine.processor().getNumPhysPages() * pageSize;
 
         // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        if (vaddr < 0 || vaddr >= memorySize)
             return 0;
 
-        int amount = Math.min(length, memory.length - vaddr);
-        System.arraycopy(data, offset, memory, vaddr, amount);
+        int amount = (int) Math.min(length, memorySize - vaddr);
+        memory.write(vaddr, data, offset, amount);
 
         return amount;
     }
@@ -361,6 +392,108 @@ public class UserProcess {
     protected void unloadSections() {
     }
 
+    /**
+     * Test whether this process can be saved in a machine snapshot. Only
+     * this process is saved, so it must be the only one running, and since
+     * the exit statuses of children are not saved, it must have none.
+     *
+     * @return <tt>true</tt> if <tt>saveSnapshot()</tt> may be called.
+     */
+    public boolean canSaveSnapshot() {
+        return running && numRunning == 1 && childList.isEmpty();
+    }
+
+    /**
+     * Save the state of this process as part of a machine snapshot: its
+     * page table, layout and open files. Only called if
+     * <tt>canSaveSnapshot()</tt> returns <tt>true</tt>.
+     *
+     * @param out the snapshot being written.
+     */
+    public void saveSnapshot(DataOutput out) throws IOException {
+        Lib.assertTrue(canSaveSnapshot());
+
+        out.writeInt(id);
+        out.writeInt(numPages);
+        out.writeInt(initialPC);
+        out.writeInt(initialSP);
+        out.writeInt(argc);
+        out.writeInt(argv);
+
+        out.writeInt(pageTable.length);
+        for (TranslationEntry entry : pageTable) {
+            out.writeInt(entry.vpn);
+            out.writeInt(entry.ppn);
+            out.writeBoolean(entry.valid);
+            out.writeBoolean(entry.readOnly);
+            out.writeBoolean(entry.used);
+            out.writeBoolean(entry.dirty);
+        }
+
+        // the console is always 0 and 1, other files are reopened by name
+        for (int i = 2; i < fileTable.length; i++) {
+            out.writeBoolean(fileTable[i] != null);
+            if (fileTable[i] != null) {
+                out.writeUTF(fileTable[i].getName());
+                out.writeInt(fileTable[i].tell());
+            }
+        }
+    }
+
+    /**
+     * Restore the state saved by <tt>saveSnapshot()</tt>. The memory of the
+     * process has already been restored with the rest of the machine.
+     *
+     * @param in the snapshot being read.
+     */
+    public void restoreSnapshot(DataInput in) throws IOException {
+        removeMetrics();
+        id = in.readInt();
+        createMetrics();
+        numPages = in.readInt();
+        initialPC = in.readInt();
+        initialSP = in.readInt();
+        argc = in.readInt();
+        argv = in.readInt();
+
+        pageTable = new TranslationEntry[in.readInt()];
+        for (int i = 0; i < pageTable.length; i++) {
+            pageTable[i] = new TranslationEntry(in.readInt(), in.readInt(),
+                    in.readBoolean(), in.readBoolean(), in.readBoolean(),
+                    in.readBoolean());
+        }
+
+        for (int i = 2; i < fileTable.length; i++) {
+            if (!in.readBoolean())
+                continue;
+
+            String name = in.readUTF();
+            int position = in.readInt();
+
+            fileTable[i] = Machine.stubFileSystem().open(name, false);
+            if (fileTable[i] == null)
+                Lib.debug(dbgProcess, "\tcould not reopen " + name);
+            else if (position >= 0)
+                fileTable[i].seek(position);
+        }
+    }
+
+    /**
+     * Continue running this process from the registers in the processor,
+     * after restoring it from a machine snapshot.
+     *
+     * @param name the name of the thread to run it in.
+     */
+    public void resume(String name) {
+        int[] registers = new int[Processor.numUserRegisters];
+        for (int i = 0; i < registers.length; i++)
+            registers[i] = Machine.processor().readRegister(i);
+
+        running = true;
+        numRunning++;
+        new UThread(this, registers).setName(name).fork();
+    }
+
     /**
      * Initialize the processor's registers in preparation for running the
      * program loaded into this process. Set the PC register to point at the
@@ -390,9 +523,9 @@ public class UserProcess {
     private int handleHalt() {
         unloadSectionsAndCloseFile();
 
-        Machine.halt();
+        Kernel.kernel.terminate();
 
-        Lib.assertNotReached("Machine.halt() did not halt machine!");
+        Lib.assertNotReached("Kernel.terminate() did not halt machine!");
         return 0;
     }
 
@@ -437,11 +570,14 @@ public class UserProcess {
            call V() on this processes join semaphore in case anyone is waiting */
         unloadSectionsAndCloseFile();
         exitStatus = exit;
+        running = false;
+        numRunning--;
         joinSem.V();
         // Done
         if (id == 0) {
-            Machine.halt();
+            Kernel.kernel.terminate();
         }
+        removeMetrics();
         KThread.finish();
         return exit;
     }
@@ -641,6 +777,55 @@ public class UserProcess {
         return 0;
     }
 
+    /**
+     * Register the metrics of this process, named by its id.
+     */
+    private void createMetrics() {
+        Metrics metrics = Machine.metrics();
+        syscallCount = metrics.counter("process." + id + ".syscalls");
+        faultCount = metrics.counter("process." + id + ".faults");
+
+        if (syscallTicks == null)
+            syscallTicks = metrics.histogram("syscalls.ticks");
+    }
+
+    /**
+     * Unregister the metrics of this process, when it exits or takes on the
+     * id of a process restored from a snapshot. The first process keeps its
+     * metrics when it exits, because that halts the machine and they are
+     * exported.
+     */
+    private void removeMetrics() {
+        Metrics metrics = Machine.metrics();
+        metrics.remove("process." + id + ".syscalls");
+        metrics.remove("process." + id + ".faults");
+    }
+
+    /**
+     * Count an exception against this process. Called by
+     * <tt>UserKernel.exceptionHandler()</tt> before
+     * <tt>handleException()</tt>, so that exceptions a subclass handles
+     * itself, such as page faults, are counted too.
+     *
+     * @param cause the user exception that occurred.
+     */
+    void countException(int cause) {
+        if (cause == Processor.exceptionSyscall)
+            syscallCount.increment();
+        else
+            faultCount.increment();
+    }
+
+    private static void countSyscall(int syscall) {
+        if (syscall < 0 || syscall >= syscallNames.length)
+            return;
+
+        if (syscallCounts[syscall] == null)
+            syscallCounts[syscall] = Machine.metrics().counter(
+                    "syscalls." + syscallNames[syscall]);
+        syscallCounts[syscall].increment();
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -654,12 +839,18 @@ public class UserProcess {
 
         switch (cause) {
             case Processor.exceptionSyscall:
-                int result = handleSyscall(processor.readRegister(Processor.regV0),
+                int syscall = processor.readRegister(Processor.regV0);
+                countSyscall(syscall);
+
+                long start = Machine.timer().getTime();
+                int result = handleSyscall(syscall,
                         processor.readRegister(Processor.regA0),
                         processor.readRegister(Processor.regA1),
                         processor.readRegister(Processor.regA2),
                         processor.readRegister(Processor.regA3)
                 );
+                syscallTicks.record(Machine.timer().getTime() - start);
+
                 processor.writeRegister(Processor.regV0, result);
                 processor.advancePC();
                 break;